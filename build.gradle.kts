@@ -12,6 +12,7 @@ repositories {
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
     implementation("org.apache.lucene:lucene-core:9.9.0")
     implementation("org.apache.lucene:lucene-queryparser:9.0.0")
     implementation("com.fasterxml.jackson.core:jackson-databind:2.12.5")
@@ -19,8 +20,13 @@ dependencies {
     implementation("com.fasterxml.jackson.core:jackson-annotations:2.12.5")
 }
 
+tasks.withType<JavaCompile> {
+    options.compilerArgs.addAll(listOf("--add-modules", "jdk.incubator.vector"))
+}
+
 tasks.test {
     useJUnitPlatform()
+    jvmArgs("--add-modules", "jdk.incubator.vector")
 }
 
 // Improves performance of Java vector incubator API, default is preferredBitSize=128
@@ -0,0 +1,113 @@
+package org.tlind;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 1-bit quantizer: every dimension becomes the sign of the component relative to a center, packed 64 dimensions to a
+ * {@code long}. A 1024-dimensional Cohere vector shrinks from 4096 bytes to 128, and the Hamming distance between two
+ * codes, a few {@code Long.bitCount} calls, approximates their angle.
+ * <p>
+ * With a zero center the bits are the raw signs. Embedding components are not always centered on zero, and a
+ * dimension that is positive for most vectors carries almost no information as a sign, so {@link #centered} subtracts
+ * the per-dimension mean of a sample first.
+ * <p>
+ * The codes are only good enough to preselect candidates; {@link BinaryVectorIndex} rescores them with the float
+ * vectors.
+ */
+public class BinaryQuantizer {
+    private final float[] center;
+    private final int words;
+
+    public BinaryQuantizer(float[] center) {
+        this.center = center;
+        this.words = (center.length + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /** Plain sign bits. */
+    public static BinaryQuantizer signs(int dimension) {
+        return new BinaryQuantizer(new float[dimension]);
+    }
+
+    /** Sign bits around the mean of {@code sampleSize} records spread evenly over the file. */
+    public static BinaryQuantizer centered(MappedVectorFile file, int sampleSize) {
+        int count = Math.min(sampleSize, file.size());
+        double[] sum = new double[file.dimension()];
+        float[] vector = new float[file.dimension()];
+        for (int i = 0; i < count; i++) {
+            file.readFloats((int) ((long) i * file.size() / count), vector);
+            for (int d = 0; d < vector.length; d++) {
+                sum[d] += vector[d];
+            }
+        }
+        float[] center = new float[file.dimension()];
+        for (int d = 0; d < center.length; d++) {
+            center[d] = count == 0 ? 0 : (float) (sum[d] / count);
+        }
+        return new BinaryQuantizer(center);
+    }
+
+    public int dimension() {
+        return center.length;
+    }
+
+    /** Number of {@code long}s per code. */
+    public int words() {
+        return words;
+    }
+
+    public float[] getCenter() {
+        return center;
+    }
+
+    public long[] encode(float[] vector) {
+        long[] code = new long[words];
+        encode(vector, code, 0);
+        return code;
+    }
+
+    /** Writes the code of {@code vector} into {@code dst[offset, offset + words())}. */
+    public void encode(float[] vector, long[] dst, int offset) {
+        checkDimension(vector.length);
+        for (int w = 0; w < words; w++) {
+            long bits = 0;
+            int base = w * Long.SIZE;
+            int end = Math.min(center.length, base + Long.SIZE);
+            for (int d = base; d < end; d++) {
+                if (vector[d] > center[d]) {
+                    bits |= 1L << (d - base);
+                }
+            }
+            dst[offset + w] = bits;
+        }
+    }
+
+    /** Encodes the little-endian floats starting at byte {@code position} of a mapped fvec, without copying them. */
+    public void encode(ByteBuffer buffer, int position, long[] dst, int offset) {
+        for (int w = 0; w < words; w++) {
+            long bits = 0;
+            int base = w * Long.SIZE;
+            int end = Math.min(center.length, base + Long.SIZE);
+            for (int d = base; d < end; d++) {
+                if (buffer.getFloat(position + d * Float.BYTES) > center[d]) {
+                    bits |= 1L << (d - base);
+                }
+            }
+            dst[offset + w] = bits;
+        }
+    }
+
+    /** Number of differing bits between the codes at {@code a[aOffset]} and {@code b[bOffset]}. */
+    public static int hamming(long[] a, int aOffset, long[] b, int bOffset, int words) {
+        int distance = 0;
+        for (int w = 0; w < words; w++) {
+            distance += Long.bitCount(a[aOffset + w] ^ b[bOffset + w]);
+        }
+        return distance;
+    }
+
+    private void checkDimension(int dimension) {
+        if (dimension != center.length) {
+            throw new IllegalArgumentException("Expected " + center.length + " dimensions but got " + dimension);
+        }
+    }
+}
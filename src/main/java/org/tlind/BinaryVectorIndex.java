@@ -0,0 +1,79 @@
+package org.tlind;
+
+import java.util.stream.IntStream;
+
+/**
+ * Flat index of {@link BinaryQuantizer} codes, searched in two phases: a Hamming scan over all codes picks
+ * {@code k * overFetch} candidates, which are rescored with their float vectors (see
+ * {@link RerankingSearcher.FloatVectors}).
+ * <p>
+ * Lucene 9.9 has no Hamming similarity for its HNSW graphs, so the codes are kept back to back in one {@code long[]}
+ * and scanned exhaustively instead. At one bit per dimension that is 32x less memory than the float vectors, so the
+ * candidate stage stays in cache or RAM where the floats would not, and only the few candidates read their floats,
+ * typically from the mapped fvec. Sign codes lose much more than int8, so the over-fetch factor is larger:
+ * {@code -DbinaryOverFetch}, default 10. Hits are source ordinals.
+ */
+public class BinaryVectorIndex {
+    private static final int defaultOverFetch = Integer.getInteger("binaryOverFetch", 10);
+    private static final int RECORDS_PER_TASK = 4096;
+
+    private final BinaryQuantizer quantizer;
+    private final int size;
+    private final int words;
+    private final long[] codes;
+
+    private BinaryVectorIndex(BinaryQuantizer quantizer, int size, long[] codes) {
+        this.quantizer = quantizer;
+        this.size = size;
+        this.words = quantizer.words();
+        this.codes = codes;
+    }
+
+    /** Encodes every record of {@code file}, reading straight from the mapping on the common fork-join pool. */
+    public static BinaryVectorIndex build(MappedVectorFile file, BinaryQuantizer quantizer) {
+        if (file.dimension() != quantizer.dimension()) {
+            throw new IllegalArgumentException("Quantizer has " + quantizer.dimension() + " dimensions but the file has " + file.dimension());
+        }
+        int words = quantizer.words();
+        if ((long) file.size() * words > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(file.size() + " codes of " + words + " words do not fit in one array");
+        }
+        long[] codes = new long[file.size() * words];
+        int tasks = (file.size() + RECORDS_PER_TASK - 1) / RECORDS_PER_TASK;
+        IntStream.range(0, tasks).parallel().forEach(task -> {
+            int end = Math.min(file.size(), (task + 1) * RECORDS_PER_TASK);
+            for (int ord = task * RECORDS_PER_TASK; ord < end; ord++) {
+                quantizer.encode(file.buffer(ord), file.position(ord), codes, ord * words);
+            }
+        });
+        return new BinaryVectorIndex(quantizer, file.size(), codes);
+    }
+
+    public static int defaultOverFetch() {
+        return defaultOverFetch;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Bytes held by the codes. */
+    public long sizeInBytes() {
+        return (long) codes.length * Long.BYTES;
+    }
+
+    /** The {@code count} records with the smallest Hamming distance to {@code query}, nearest first. */
+    public int[] candidates(float[] query, int count) {
+        long[] code = quantizer.encode(query);
+        KNN.TopK topK = new KNN.TopK(Math.min(count, size));
+        for (int ord = 0, offset = 0; ord < size; ord++, offset += words) {
+            topK.insert(ord, BinaryQuantizer.hamming(code, 0, codes, offset, words));
+        }
+        return topK.sortedOrdinals();
+    }
+
+    /** The {@code k} nearest records by exact Euclidean distance among the {@code k * overFetch} Hamming candidates. */
+    public int[] search(float[] query, int k, int overFetch, RerankingSearcher.FloatVectors vectors) {
+        return RerankingSearcher.rescore(candidates(query, k * overFetch), k, vectors.forQuery(query));
+    }
+}
@@ -2,224 +2,155 @@ package org.tlind;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.KnnFloatVectorField;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.KnnByteVectorQuery;
 import org.apache.lucene.search.KnnFloatVectorQuery;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
 
 import java.io.*;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.MemoryUsage;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.concurrent.*;
 
 public class BuildIndexLucene {
-    private static final int memorySleepAmount = 100; // Sleep interval in milliseconds -- set as needed
-    private static final int numberOfVectorsToIndex = 100_000; // TODO: SET THIS BASED ON THE SIZE OF YOUR DATASET!
 
-    private static volatile long maxMemoryUsage = 0;
+    private static final LatencyReport latencies = new LatencyReport();
 
-    private static float min;
-    private static float max;
+    // One document per indexing thread, refilled for every vector and tagged with its ordinal for recall
+    private static final ThreadLocal<ReusableVectorDocument> documents =
+            ThreadLocal.withInitial(() -> new ReusableVectorDocument("title", "vector").withOrdinals(VectorOrdinals.FIELD));
 
     public static void main(String[] args) throws Exception {
-        // Start memory monitoring thread
-        Thread memoryMonitor = new Thread(BuildIndexLucene::monitorMemoryUsage);
-        memoryMonitor.start();
-
         // Get the current time and date
         String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
         System.out.println("Lucene Bench\nTest run on: " + timeStamp);
         System.out.println("(Heap space available is " + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB)");
 
-        long startTime = System.currentTimeMillis();
+        String shardCounts = System.getProperty("shards");
+        if (shardCounts != null) {
+            // Compare sharded builds, e.g. -Dshards=1,2,4,8, instead of running the single-writer build
+            ShardedIndexBuilder.sweep(args[0], shardCounts, "BuildIndexLucene-sharded");
+            return;
+        }
 
-        // Create a new index in memory
-        Directory index = new ByteBuffersDirectory();
+        String workingDirectory = System.getProperty("user.dir");
+        Directory index = IndexDirectories.open("BuildIndexLucene");
+        System.out.println("Index directory: " + IndexDirectories.describe(index, "BuildIndexLucene"));
+
+        MemoryProfiler profiler;
+        if (IndexDirectories.searchOnly()) {
+            System.out.println("Search only: reusing the existing index");
+            profiler = MemoryProfiler.start("search");
+        } else {
+            // The pipeline decodes the fvec while indexing, so there is no separate parse phase
+            profiler = MemoryProfiler.start("index");
+            buildIndex(index, args[0], profiler);
+            profiler.phase("search");
+        }
+
+        if (args.length >= 3) {
+            // Score the index against ground truth: <base.fvec> <query.fvec> <groundtruth.ivec>
+            RecallEvaluator evaluator = RecallEvaluator.load(args[1], args[2]);
+            try (DirectoryReader reader = DirectoryReader.open(index)) {
+                RecallEvaluator.Result result = evaluator.evaluateFloats(new IndexSearcher(reader), "vector",
+                        RecallEvaluator.defaultNumCandidates());
+                System.out.println("\nSearch: " + result);
+                latencies.histogram("query").merge(result.histogram());
+            }
+        } else {
+            System.out.println("\nPass <query.fvec> <groundtruth.ivec> after the base file to measure recall.");
+
+            // Run an example search
+            float[] queryVector = loadQuery(workingDirectory + "/src/main/java/org/tlind/examplequery.json");
+
+            // Let's perform a basic vector search using a query vector defined above.
+            int k = 5; // Number of nearest neighbors
+            IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(index));
+            KnnFloatVectorQuery knnQuery = new KnnFloatVectorQuery("vector", queryVector, k);
+            TopDocs topDocs = searcher.search(knnQuery, k);
+
+            // Display the results
+            System.out.println("Example Vector Search Query Found " + topDocs.totalHits + ":");
+            for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+                System.out.println("\t- Doc ID: " + topDocs.scoreDocs[i].doc + ", Score: " + topDocs.scoreDocs[i].score);
+            }
+        }
+
+        profiler.close();
+        System.out.println("\nMemory profile:\n" + profiler.report());
+        latencies.print();
+
+        // Close the index
+        index.close();
+    }
+
+    /** Builds the index from the fvec file, reporting time and index size; memory goes to the profiler's phases. */
+    private static void buildIndex(Directory index, String fvecPath, MemoryProfiler profiler) throws Exception {
+        long startTime = System.currentTimeMillis();
 
         // Set up an analyzer and index writer configuration
         StandardAnalyzer analyzer = new StandardAnalyzer();
         IndexWriterConfig config = new IndexWriterConfig(analyzer);
         config.setMergePolicy(new LogByteSizeMergePolicy());
         config.setRAMBufferSizeMB(256.0);
-        IndexWriter writer = new IndexWriter(index, config);
+        IndexWriter writer = new IndexWriter(index, IndexDirectories.forBuild(VectorCodecs.configure(config)));
 
-        String workingDirectory = System.getProperty("user.dir");
-        String fvecPath = args[0];
-
-        // First pass to find the global min and max values used in int8 quantization
-        float[] minMax = VectorFileLoader.findMinAndMax(fvecPath);
-        min = minMax[0];
-        max = minMax[1];
+        float indexLatency = loadFvecsAndIndex(writer, fvecPath);
 
-        float indexLatency = loadFvecsAndIndex(writer, fvecPath, min, max);
+        // Write out the last in-memory segment, so the merge below only merges
+        latencies.time("flush", writer::flush);
 
         logMemoryUsage("after indexing");
 
         System.out.println("\nIndexing complete. Merging segments...");
+        profiler.phase("merge");
 
-        long startMergeTime = System.currentTimeMillis();
+        long startMergeTime = System.nanoTime();
 
         writer.forceMerge(1);
 
-        long endMergeTime = System.currentTimeMillis();
+        long mergeNanos = System.nanoTime() - startMergeTime;
+        latencies.histogram("merge").record(mergeNanos);
 
-        System.out.println("Merge time: " + (endMergeTime - startMergeTime) + " milliseconds");
+        System.out.println("Merge time (" + VectorCodecs.describe() + "): " + mergeNanos / 1_000_000 + " milliseconds");
 
         writer.close();
 
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
 
-        // Stop memory monitoring thread
-        memoryMonitor.interrupt();
-
         // Prepare metrics content
         StringBuilder metricsContent = new StringBuilder(
                 "\nTotal execution time: " + duration + " milliseconds\n" +
-                "Max memory usage: " + maxMemoryUsage / (1024 * 1024) + " MB\n");
-
+                "Index size: " + String.format("%.1f", IndexDirectories.sizeInBytes(index) / (1024.0 * 1024)) + " MB\n");
 
         // Prepare the content for the metrics file
         metricsContent.append("Average index latency: ").append(indexLatency).append(" milliseconds\n");
 
         // Print the final metrics
         System.out.println(metricsContent);
-
-        // Run an example search
-        float[] queryVector = loadQuery(workingDirectory + "/src/main/java/org/tlind/examplequery.json");
-
-        // Let's perform a basic vector search using a query vector defined above.
-        int k = 5; // Number of nearest neighbors
-        IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(index));
-        KnnFloatVectorQuery knnQuery = new KnnFloatVectorQuery("vector", queryVector, k);
-        TopDocs topDocs = searcher.search(knnQuery, k);
-
-        // Display the results
-        System.out.println("Example Vector Search Query Found " + topDocs.totalHits + ":");
-        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
-            System.out.println("\t- Doc ID: " + topDocs.scoreDocs[i].doc + ", Score: " + topDocs.scoreDocs[i].score);
-        }
-
-        // Load fvec queries from  using VectorFileLoader
-        ArrayList<float[]> queries = VectorFileLoader.readFvecs("/Users/tiernan.lindauer/IdeaProjects/jvector/fvec/wikipedia_squad/100k/cohere_embed-english-v3.0_1024_query_vectors_10000.fvec");
-
-        int indices = 0;
-        for (float[] query: queries) {
-            KnnFloatVectorQuery knnQuery2 = new KnnFloatVectorQuery("vector", query, k);
-            TopDocs topDocs2 = searcher.search(knnQuery2, k);
-
-            System.out.println("Example Vector Search Query Found " + topDocs2.totalHits + ":");
-            for (int i = 0; i < topDocs2.scoreDocs.length; i++) {
-                System.out.println("\t- Doc ID: " + topDocs2.scoreDocs[i].doc + ", Score: " + topDocs2.scoreDocs[i].score);
-            }
-            indices++;
-
-            if (indices > 10) {
-                break;
-            }
-        }
-
-        // Close the index
-        index.close();
-    }
-
-    private static float loadDatasetAndIndex(IndexWriter writer, String txtFilePath) throws InterruptedException, ExecutionException, IOException {
-        return loadDatasetAndIndex(writer, txtFilePath, Runtime.getRuntime().availableProcessors());
     }
 
-    private static float loadFvecsAndIndex(IndexWriter writer, String fvecFilePath, float min, float max) {
-        ProgressBar progressBar = new ProgressBar(numberOfVectorsToIndex);
-        long totalIndexLatency = 0;
-        long count = 0;
-        try (var dis = new DataInputStream(new BufferedInputStream(new FileInputStream(fvecFilePath)))) {
-            while (dis.available() > 0) {
-                long start = System.currentTimeMillis();
-                var dimension = Integer.reverseBytes(dis.readInt());
-                assert dimension > 0 : dimension;
-                var buffer = new byte[dimension * Float.BYTES];
-                dis.readFully(buffer);
-                var byteBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
-
-                var vector = new float[dimension];
-                var floatBuffer = byteBuffer.asFloatBuffer();
-                floatBuffer.get(vector);
-
-                addDoc(writer, "title", vector);
-                long end = System.currentTimeMillis();
-                totalIndexLatency += end - start;
-                count++;
-                progressBar.update();
-            }
+    private static float loadFvecsAndIndex(IndexWriter writer, String fvecFilePath) {
+        try (var file = MappedVectorFile.open(fvecFilePath)) {
+            // The reader stage decodes blocks of vectors; Lucene copies each value on add, so the blocks are reused
+            FvecIngestPipeline.Stats stats = FvecIngestPipeline.configured(file, true)
+                    .withProgressBar(new ProgressBar(file.size()))
+                    .withLatencies(latencies)
+                    .run(() -> block -> writer.addDocuments(
+                            documents.get().floats(block.start(), block.count(), "title", block::vector)));
+            System.out.println("\n" + stats);
+            return stats.averageIndexLatencyMillis();
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
-        return (float) totalIndexLatency / count;
-    }
-    private static float loadDatasetAndIndex(IndexWriter writer, String txtFilePath, int numThreads) throws InterruptedException, ExecutionException, IOException {
-        return loadDatasetAndIndex(writer, txtFilePath, numThreads, 100_000);
-    }
-
-    private static float loadDatasetAndIndex(IndexWriter writer, String txtFilePath, int numThreads, int nToIndex) throws InterruptedException, ExecutionException, IOException {
-        ConcurrentLinkedQueue<Long> metrics = new ConcurrentLinkedQueue<>();
-
-        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
-        CompletionService<Long> completionService = new ExecutorCompletionService<>(executorService);
-
-        try (BufferedReader br = new BufferedReader(new FileReader(txtFilePath))) {
-            String line;
-            ConcurrentLinkedQueue<TitleEmbPair> batch = new ConcurrentLinkedQueue<>();
-            int batchSize = 1000;
-            ProgressBar progressBar = new ProgressBar(nToIndex);
-
-            while ((line = br.readLine()) != null) {
-                batch.add(parseLine(line));
-
-                if (batch.size() >= batchSize) {
-                    submitBatch(writer, batch, completionService, progressBar);
-                    batch.clear();
-                }
-            }
-
-            if (!batch.isEmpty()) {
-                submitBatch(writer, batch, completionService, progressBar);
-            }
-        }
-
-        for (int i = 0; i < numThreads; i++) {
-            completionService.submit(() -> null);
-        }
-
-        for (int i = 0; i < numThreads; i++) {
-            Future<Long> future = completionService.take();
-            if (future != null) {
-                metrics.add(future.get());
-            }
-        }
-
-        executorService.shutdown();
-
-        long sum = 0;
-        for (long metric : metrics) {
-            sum += metric;
-        }
-
-        return (float) sum / metrics.size();
     }
 
     private static void logMemoryUsage(String phase) {
@@ -231,60 +162,6 @@ public class BuildIndexLucene {
         System.out.println("\nMemory used " + phase + ": " + usedMemoryMB + " MB");
     }
 
-    private static void submitBatch(IndexWriter writer, ConcurrentLinkedQueue<TitleEmbPair> batch, CompletionService<Long> completionService, ProgressBar progressBar) {
-        for (TitleEmbPair pair : batch) {
-            completionService.submit(() -> {
-                ConcurrentLinkedQueue<Float> embeddingList = pair.getEmb();
-                float[] embeddingArray = new float[embeddingList.size()];
-                int j = 0;
-                for (Float vec : embeddingList) {
-                    embeddingArray[j++] = vec;
-                }
-
-                long start = System.currentTimeMillis();
-                addDoc(writer, pair.getTitle(), embeddingArray);
-                long end = System.currentTimeMillis();
-                progressBar.update();
-                return end - start;
-            });
-        }
-    }
-
-    private static TitleEmbPair parseLine(String line) {
-        String[] parts = line.split("\t");
-        String title = parts[0];
-        String[] embStrs = parts[1].split(",");
-        ConcurrentLinkedQueue<Float> emb = new ConcurrentLinkedQueue<>();
-        for (String embStr : embStrs) {
-            emb.add((float) Double.parseDouble(embStr));
-        }
-        return new TitleEmbPair(title, emb);
-    }
-
-    private static void addDoc(IndexWriter writer, String title, float[] vector) {
-        Document doc = new Document();
-        doc.add(new TextField("title", title, TextField.Store.YES));
-        doc.add(new KnnFloatVectorField("vector", vector));
-        try {
-            writer.addDocument(doc);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static void addDocs(IndexWriter writer, String title, ArrayList<float[]> vectors) {
-        Document doc = new Document();
-        doc.add(new TextField("title", title, TextField.Store.YES));
-        for (float[] vector : vectors) {
-            doc.add(new KnnFloatVectorField("vector", vector));
-        }
-        try {
-            writer.addDocument(doc);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     private static float[] loadQuery(String queryJsonPath) {
         // Query file will have a single field “emb”
         ObjectMapper objectMapper = new ObjectMapper();
@@ -302,20 +179,4 @@ public class BuildIndexLucene {
 
         return query;
     }
-
-    private static void monitorMemoryUsage() {
-        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
-        while (!Thread.currentThread().isInterrupted()) {
-            MemoryUsage heapMemoryUsage = memoryBean.getHeapMemoryUsage();
-            long usedMemory = heapMemoryUsage.getUsed();
-            if (usedMemory > maxMemoryUsage) {
-                maxMemoryUsage = usedMemory;
-            }
-            try {
-                Thread.sleep(memorySleepAmount); // Adjust the sleep interval as needed
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-    }
 }
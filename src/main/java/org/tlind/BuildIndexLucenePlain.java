@@ -2,24 +2,16 @@ package org.tlind;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.KnnFloatVectorField;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.KnnFloatVectorQuery;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
 
-import java.io.File;
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.MemoryUsage;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -29,91 +21,105 @@ import java.util.concurrent.*;
 
 
 public class BuildIndexLucenePlain {
-    private static final int memorySleepAmount = 100; // Sleep interval in milliseconds -- set as needed
+    private static final int batchSize = Integer.getInteger("batchSize", 1000); // Documents per addDocuments call
 
-    private static volatile long maxMemoryUsage = 0;
+    private static final LatencyReport latencies = new LatencyReport();
 
-    public static void main(String[] args) throws Exception {
-        // Start memory monitoring thread
-        Thread memoryMonitor = new Thread(BuildIndexLucenePlain::monitorMemoryUsage);
-        memoryMonitor.start();
+    // One document per indexing thread, refilled for every vector
+    private static final ThreadLocal<ReusableVectorDocument> documents =
+            ThreadLocal.withInitial(() -> new ReusableVectorDocument("title", "vector"));
 
+    public static void main(String[] args) throws Exception {
         // Get the current time and date
         String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
 
         System.out.println("Lucene Bench\nTest run on: " + timeStamp);
         System.out.println("(Heap space available is " + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB)");
 
-        long startTime = System.currentTimeMillis();
+        String workingDirectory = System.getProperty("user.dir");
+        Directory index = IndexDirectories.open("BuildIndexLucenePlain");
+        System.out.println("Index directory: " + IndexDirectories.describe(index, "BuildIndexLucenePlain"));
+
+        MemoryProfiler profiler;
+        if (IndexDirectories.searchOnly()) {
+            System.out.println("Search only: reusing the existing index");
+            profiler = MemoryProfiler.start("search");
+        } else {
+            // Parsing the JSON and indexing are interleaved, so both count as the index phase
+            profiler = MemoryProfiler.start("index");
+            buildIndex(index, args[0], profiler);
+            profiler.phase("search");
+        }
 
-        // Create a new index in memory
-        Directory index = new ByteBuffersDirectory();
+        // Run an example search
+        float[] queryVector = loadQuery(workingDirectory + "/src/main/java/org/tlind/examplequery.json");
+
+        // Let's perform a basic vector search using a query vector defined above.
+        int k = 5; // Number of nearest neighbors
+        IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(index));
+        KnnFloatVectorQuery knnQuery = new KnnFloatVectorQuery("vector", queryVector, k);
+        long queryStart = System.nanoTime();
+        TopDocs topDocs = searcher.search(knnQuery, k);
+        latencies.histogram("query").recordSince(queryStart);
+
+        // Display the results
+        System.out.println("Example Vector Search Query Found " + topDocs.totalHits + ":");
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            System.out.println("\t- Doc ID: " + topDocs.scoreDocs[i].doc + ", Score: " + topDocs.scoreDocs[i].score);
+        }
+
+        profiler.close();
+        System.out.println("\nMemory profile:\n" + profiler.report());
+        latencies.print();
+
+        // Close the index
+        index.close();
+    }
+
+    /** Builds the index from the JSON dataset, reporting time and index size; memory goes to the profiler's phases. */
+    private static void buildIndex(Directory index, String jsonFilePath, MemoryProfiler profiler) throws Exception {
+        long startTime = System.currentTimeMillis();
 
         // Set up an analyzer and index writer configuration
         StandardAnalyzer analyzer = new StandardAnalyzer();
         IndexWriterConfig config = new IndexWriterConfig(analyzer);
-        config.setMergePolicy(NoMergePolicy.INSTANCE);
-        IndexWriter writer = new IndexWriter(index, config);
+        config.setMergePolicy(new LogByteSizeMergePolicy());
+        IndexWriter writer = new IndexWriter(index, IndexDirectories.forBuild(VectorCodecs.configure(config)));
 
-        String workingDirectory = System.getProperty("user.dir");
-        String jsonFilePath = args[0];
+        loadDatasetAndIndex(writer, jsonFilePath);
 
-        // Detailed metrics
-        ArrayList<Long> indexLatencies = loadDatasetAndIndex(writer, jsonFilePath);
+        // Write out the last in-memory segment, so the merge below only merges
+        latencies.time("flush", writer::flush);
 
+        profiler.phase("merge");
+        long startMergeTime = System.nanoTime();
         writer.forceMerge(1);
+        long mergeNanos = System.nanoTime() - startMergeTime;
+        latencies.histogram("merge").record(mergeNanos);
+        System.out.println("Merge time (" + VectorCodecs.describe() + "): " + mergeNanos / 1_000_000 + " milliseconds");
         writer.close();
 
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
 
-        // Stop memory monitoring thread
-        memoryMonitor.interrupt();
-
         // Prepare metrics content
         StringBuilder metricsContent = new StringBuilder("Total execution time: " + duration + " milliseconds\n" +
-                "Max memory usage: " + maxMemoryUsage / (1024 * 1024) + " MB\n");
+                "Index size: " + String.format("%.1f", IndexDirectories.sizeInBytes(index) / (1024.0 * 1024)) + " MB\n");
 
 
-        // Calculate the average index latency and error bars
-        long sum = 0;
-        for (long latency : indexLatencies) {
-            sum += latency;
-        }
-        double averageIndexLatency = (double) sum / indexLatencies.size();
-        double error = 1.96 * Math.sqrt((double) sum / indexLatencies.size() * (1 - (double) sum / indexLatencies.size()) / indexLatencies.size());
-
-        // Prepare the content for the metrics file
-        metricsContent.append("\t- Average index latency: ").append(averageIndexLatency).append(" milliseconds\n");
-        metricsContent.append("\t- MOE: ").append(error).append(" milliseconds\n");
-        metricsContent.append("\t- Total index latency: ").append(sum / 1000.0).append(" seconds\n");
+        // Batch latency percentiles are in the latency report
+        LatencyHistogram batchLatencies = latencies.histogram("addDocuments").snapshot();
+        metricsContent.append("\t- Average batch latency: ").append(batchLatencies.meanNanos() / 1e6).append(" milliseconds\n");
+        metricsContent.append("\t- Total index latency: ").append(batchLatencies.totalNanos() / 1e9).append(" seconds\n");
 
 
         // Print the final metrics
         System.out.println(metricsContent);
-
-        // Run an example search
-        float[] queryVector = loadQuery(workingDirectory + "/src/main/java/org/tlind/examplequery.json");
-
-        // Let's perform a basic vector search using a query vector defined above.
-        int k = 5; // Number of nearest neighbors
-        IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(index));
-        KnnFloatVectorQuery knnQuery = new KnnFloatVectorQuery("vector", queryVector, k);
-        TopDocs topDocs = searcher.search(knnQuery, k);
-
-        // Display the results
-        System.out.println("Example Vector Search Query Found " + topDocs.totalHits + ":");
-        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
-            System.out.println("\t- Doc ID: " + topDocs.scoreDocs[i].doc + ", Score: " + topDocs.scoreDocs[i].score);
-        }
-
-        // Close the index
-        index.close();
     }
 
-    private static ArrayList<Long> loadDatasetAndIndex(IndexWriter writer, String jsonFilePath) throws InterruptedException, ExecutionException {
+    private static void loadDatasetAndIndex(IndexWriter writer, String jsonFilePath) throws InterruptedException, ExecutionException {
         // Default to using all available processors
-        return loadDatasetAndIndex(writer, jsonFilePath, Runtime.getRuntime().availableProcessors());
+        loadDatasetAndIndex(writer, jsonFilePath, Runtime.getRuntime().availableProcessors());
     }
 
     private static void logMemoryUsage(String phase) {
@@ -124,77 +130,84 @@ public class BuildIndexLucenePlain {
         long usedMemoryMB = usedMemory / (1024 * 1024);
         System.out.println("\nMemory used " + phase + ": " + usedMemoryMB + " MB");
     }
-    private static ArrayList<Long> loadDatasetAndIndex(IndexWriter writer, String jsonFilePath, int numThreads) throws InterruptedException, ExecutionException {
-        ArrayList<Long> metrics = new ArrayList<>();
-        ObjectMapper objectMapper = new ObjectMapper();
-
-        // Read the JSON file into a Data object
-        Data data;
-        try {
-            data = objectMapper.readValue(new File(jsonFilePath), Data.class);
-        } catch (IOException e) {
-            throw new RuntimeException("Error reading JSON file", e);
-        }
-
-        // Extract titles and embeddings
-        List<String> titles = data.getTitle();
-        List<List<Double>> embeddings = data.getEmb();
-
-        List<TitleEmbPairOld> titleEmbPairs = new ArrayList<>();
-        for (int i = 0; i < titles.size() && i < embeddings.size(); i++) {
-            titleEmbPairs.add(new TitleEmbPairOld(titles.get(i), embeddings.get(i)));
-        }
-
-        data = null;
-        System.gc();
-
+    /** Parses and indexes the dataset, recording the parse time of every record and the latency of every batch. */
+    private static void loadDatasetAndIndex(IndexWriter writer, String jsonFilePath, int numThreads) throws InterruptedException, ExecutionException {
         ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
-        List<Future<Long>> futures = new ArrayList<>();
-
-        System.out.println("Indexing " + titleEmbPairs.size() + " documents...");
-
-        ProgressBar progressBar = new ProgressBar(titles.size());
-
-        for (int i = 0; i < titleEmbPairs.size(); i++) {
-            final int index = i;
-            futures.add(executorService.submit(() -> {
-                // Convert List<Double> to float[]
-                List<Double> embeddingList = titleEmbPairs.get(index).getEmb();
-                float[] embeddingArray = new float[embeddingList.size()];
-                for (int j = 0; j < embeddingList.size(); j++) {
-                    embeddingArray[j] = embeddingList.get(j).floatValue();
+        CompletionService<Long> completionService = new ExecutorCompletionService<>(executorService);
+        // Bounds the batches parsed ahead of the indexing threads, and with them the heap used by embeddings
+        Semaphore inFlight = new Semaphore(maxBatchesInFlight(numThreads));
+        int batches = 0;
+        long documents = 0;
+
+        try (JsonEmbeddingReader reader = new JsonEmbeddingReader(jsonFilePath)) {
+            EmbeddingRecord record;
+            List<EmbeddingRecord> batch = new ArrayList<>(batchSize);
+            ProgressBar progressBar = null;
+            // Parsed on this thread only, so a plain histogram merged into the report at the end
+            LatencyHistogram parseLatencies = new LatencyHistogram();
+
+            long parseStart = System.nanoTime();
+            while ((record = reader.next()) != null) {
+                parseLatencies.recordSince(parseStart);
+                if (progressBar == null) {
+                    System.out.println("Indexing " + reader.expectedRecords() + " documents...");
+                    progressBar = new ProgressBar(reader.expectedRecords());
                 }
+                batch.add(record);
+
+                if (batch.size() >= batchSize) {
+                    inFlight.acquire();
+                    submitBatch(writer, batch, completionService, progressBar, inFlight);
+                    batches++;
+                    documents += batch.size();
+                    batch = new ArrayList<>(batchSize);
+                }
+                parseStart = System.nanoTime();
+            }
+            latencies.histogram("parse").merge(parseLatencies);
 
-                long start = System.currentTimeMillis();
-
-                addDoc(writer, titleEmbPairs.get(index).getTitle(), embeddingArray);
-
-                long end = System.currentTimeMillis();
-                progressBar.update();
-                return end - start;
-            }));
+            if (!batch.isEmpty()) {
+                inFlight.acquire();
+                submitBatch(writer, batch, completionService, progressBar, inFlight);
+                batches++;
+                documents += batch.size();
+            }
+        } catch (IOException e) {
+            executorService.shutdownNow();
+            throw new RuntimeException("Error reading JSON file", e);
         }
 
-        for (Future<Long> future : futures) {
-            metrics.add(future.get());
+        // Every batch has to finish, so wait for as many results as were submitted
+        for (int i = 0; i < batches; i++) {
+            completionService.take().get();
         }
 
         executorService.shutdown();
 
-        System.out.println();
+        System.out.println("\nIndexed " + documents + " documents in " + batches + " batches of up to " + batchSize);
+    }
 
-        return metrics;
+    private static int maxBatchesInFlight(int numThreads) {
+        return Integer.getInteger("maxBatchesInFlight", 2 * numThreads);
     }
 
-    private static void addDoc(IndexWriter writer, String title, float[] vector) {
-        Document doc = new Document();
-        doc.add(new TextField("title", title, TextField.Store.YES));
-        doc.add(new KnnFloatVectorField("vector", vector));
-        try {
-            writer.addDocument(doc);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    /** Indexes the whole batch as one task and returns its latency in nanoseconds. */
+    private static void submitBatch(IndexWriter writer, List<EmbeddingRecord> batch, CompletionService<Long> completionService,
+                                    ProgressBar progressBar, Semaphore inFlight) {
+        completionService.submit(() -> {
+            try {
+                long start = System.nanoTime();
+                writer.addDocuments(documents.get().floats(batch.size(),
+                        i -> batch.get(i).getTitle(),
+                        i -> batch.get(i).getEmb()));
+                long end = System.nanoTime();
+                latencies.histogram("addDocuments").record(end - start);
+                progressBar.update(batch.size());
+                return end - start;
+            } finally {
+                inFlight.release();
+            }
+        });
     }
 
     private static float[] loadQuery(String queryJsonPath) {
@@ -215,56 +228,4 @@ public class BuildIndexLucenePlain {
 
         return query;
     }
-
-
-    private static void monitorMemoryUsage() {
-        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
-        while (!Thread.currentThread().isInterrupted()) {
-            MemoryUsage heapMemoryUsage = memoryBean.getHeapMemoryUsage();
-            long usedMemory = heapMemoryUsage.getUsed();
-            if (usedMemory > maxMemoryUsage) {
-                maxMemoryUsage = usedMemory;
-            }
-            try {
-                Thread.sleep(memorySleepAmount); // Adjust the sleep interval as needed
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-    }
-}
-
-class TitleEmbPairOld {
-    private String title;
-    private List<Double> emb;
-
-    public TitleEmbPairOld(String title, List<Double> emb) {
-        this.title = title;
-        this.emb = emb;
-    }
-
-    // Getters and setters
-    public String getTitle() {
-        return title;
-    }
-
-    public void setTitle(String title) {
-        this.title = title;
-    }
-
-    public List<Double> getEmb() {
-        return emb;
-    }
-
-    public void setEmb(List<Double> emb) {
-        this.emb = emb;
-    }
-
-    @Override
-    public String toString() {
-        return "TitleEmbPair{" +
-                "title='" + title + '\'' +
-                ", emb=" + emb +
-                '}';
-    }
 }
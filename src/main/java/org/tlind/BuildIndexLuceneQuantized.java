@@ -2,104 +2,157 @@ package org.tlind;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.KnnByteVectorField;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.KnnByteVectorQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
 
 import java.io.*;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.MemoryUsage;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.*;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 public class BuildIndexLuceneQuantized {
-    private static final int memorySleepAmount = 100; // Sleep interval in milliseconds -- set as needed
-    private static final int numberOfVectorsToIndex = 100_000; // TODO: SET THIS BASED ON THE SIZE OF YOUR DATASET!
 
-    private static volatile long maxMemoryUsage = 0;
+    // Streaming calibration estimates the quantization range from the first vectors instead of a full extra pass
+    private static final boolean streamingCalibration = Boolean.getBoolean("streamingCalibration");
+    private static final int calibrationSampleSize = Integer.getInteger("calibrationSampleSize", 10_000);
+    // Fraction of the sampled range added on each side to leave room for values the sample did not see
+    private static final float calibrationMargin = Float.parseFloat(System.getProperty("calibrationMargin", "0.05"));
+    // Quantize each dimension over its own interval instead of one interval shared by all dimensions
+    private static final boolean perDimension = Boolean.getBoolean("perDimension");
+    // Central percentile of the values the quantization interval covers; anything outside is clamped
+    private static final double clipPercentile = Double.parseDouble(System.getProperty("clipPercentile", "100"));
 
-    public static float min;
-    public static float max;
+    private static ScalarQuantizer quantizer;
 
-    public static void main(String[] args) throws Exception {
-        // Start memory monitoring thread
-        Thread memoryMonitor = new Thread(BuildIndexLuceneQuantized::monitorMemoryUsage);
-        memoryMonitor.start();
+    private static final LatencyReport latencies = new LatencyReport();
+
+    // One document per indexing thread, refilled for every vector and tagged with its ordinal for recall
+    private static final ThreadLocal<ReusableVectorDocument> documents =
+            ThreadLocal.withInitial(() -> new ReusableVectorDocument("title", "vector").withOrdinals(VectorOrdinals.FIELD));
 
+    public static void main(String[] args) throws Exception {
         // Get the current time and date
         String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
         System.out.println("Lucene Bench\nTest run on: " + timeStamp);
         System.out.println("(Heap space available is " + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB)");
 
-        long startTime = System.currentTimeMillis();
+        String workingDirectory = System.getProperty("user.dir");
+        Directory index = IndexDirectories.open("BuildIndexLuceneQuantized");
+        System.out.println("Index directory: " + IndexDirectories.describe(index, "BuildIndexLuceneQuantized"));
+
+        MemoryProfiler profiler;
+        if (IndexDirectories.searchOnly()) {
+            System.out.println("Search only: reusing the existing index");
+            profiler = MemoryProfiler.start("search");
+        } else {
+            profiler = MemoryProfiler.start(streamingCalibration ? "index" : "parse");
+            buildIndex(index, args[0], profiler);
+            profiler.phase("search");
+        }
+
+        if (args.length >= 3) {
+            // Score the index against ground truth: <base.fvec> <query.fvec> <groundtruth.ivec>
+            RecallEvaluator evaluator = RecallEvaluator.load(args[1], args[2]);
+            try (DirectoryReader reader = DirectoryReader.open(index)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                ScalarQuantizer queryQuantizer = ScalarQuantizer.read(index);
+                RecallEvaluator.Result result = evaluator.evaluateBytes(searcher, "vector", queryQuantizer,
+                        RecallEvaluator.defaultNumCandidates());
+                System.out.println("\nSearch: " + result);
+                latencies.histogram("query").merge(result.histogram());
+                if (args[0].endsWith(".fvec")) {
+                    // The base file doubles as the float side store for reranking
+                    try (var base = MappedVectorFile.open(args[0])) {
+                        RerankingSearcher reranking = new RerankingSearcher(searcher, "vector", queryQuantizer,
+                                RerankingSearcher.FloatVectors.of(base));
+                        RecallEvaluator.Result reranked = evaluator.evaluateReranked(reranking,
+                                RecallEvaluator.defaultNumCandidates());
+                        System.out.println("Reranked x" + reranking.getOverFetch() + ": " + reranked);
+                        latencies.histogram("query+rerank").merge(reranked.histogram());
+                    }
+                }
+            }
+        } else {
+            System.out.println("\nPass <query.fvec> <groundtruth.ivec> after the base file to measure recall.");
+        }
+
+        profiler.close();
+        System.out.println("\nMemory profile:\n" + profiler.report());
+        latencies.print();
 
-        // Create a new index in memory
-        Directory index = new ByteBuffersDirectory();
+        // Close the index
+        index.close();
+    }
+
+    /** Builds the index from the fvec file, reporting time and index size; memory goes to the profiler's phases. */
+    private static void buildIndex(Directory index, String fvecPath, MemoryProfiler profiler) throws Exception {
+        long startTime = System.currentTimeMillis();
 
         // Set up an analyzer and index writer configuration
         StandardAnalyzer analyzer = new StandardAnalyzer();
         IndexWriterConfig config = new IndexWriterConfig(analyzer);
         config.setMergePolicy(new LogByteSizeMergePolicy());
         config.setRAMBufferSizeMB(256.0);
-        IndexWriter writer = new IndexWriter(index, config);
-
-        String workingDirectory = System.getProperty("user.dir");
-        String fvecPath = args[0];
-
-        // First pass to find the global min and max values used in int8 quantization
-        float[] minMax = VectorFileLoader.findMinAndMax(fvecPath);
-        min = minMax[0];
-        max = minMax[1];
-
-        System.out.println("Found max and min used for int8 quantization.");
+        IndexWriter writer = new IndexWriter(index, IndexDirectories.forBuild(VectorCodecs.configure(config)));
+
+        float indexLatency;
+        if (streamingCalibration) {
+            // Single pass: the range comes from a sample of the first vectors, which are indexed right after
+            indexLatency = loadFvecsAndIndexStreaming(writer, fvecPath, calibrationSampleSize, calibrationMargin);
+        } else {
+            // First pass to find the min and max values used in int8 quantization
+            long startCalibrationTime = System.currentTimeMillis();
+            quantizer = calibrate(fvecPath);
+
+            System.out.println("Found max and min used for int8 quantization in "
+                    + (System.currentTimeMillis() - startCalibrationTime) + " milliseconds.");
+
+            profiler.phase("index");
+
+            indexLatency = loadFvecsAndIndex(
+                    writer,
+                    fvecPath,
+                    quantizer
+            );
+        }
 
-        float indexLatency = loadFvecsAndIndex(
-                writer,
-                fvecPath,
-                min,
-                max
-        );
+        // Write out the last in-memory segment, so the merge below only merges
+        latencies.time("flush", writer::flush);
 
         logMemoryUsage("after indexing");
 
         System.out.println("\nIndexing complete. Merging segments...");
+        profiler.phase("merge");
 
-        long startMergeTime = System.currentTimeMillis();
+        long startMergeTime = System.nanoTime();
 
         writer.forceMerge(1);
 
-        long endMergeTime = System.currentTimeMillis();
+        long mergeNanos = System.nanoTime() - startMergeTime;
+        latencies.histogram("merge").record(mergeNanos);
 
-        System.out.println("\nMerge time: " + (endMergeTime - startMergeTime) + " milliseconds");
+        System.out.println("\nMerge time (" + VectorCodecs.describe() + "): " + mergeNanos / 1_000_000 + " milliseconds");
 
         writer.close();
 
+        // Keep the quantizer with the index so queries are quantized the same way as the documents
+        quantizer.write(index);
+
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
 
-        // Stop memory monitoring thread
-        memoryMonitor.interrupt();
-
         // Prepare metrics content
         StringBuilder metricsContent = new StringBuilder(
                 "\nTotal execution time: " + duration + " milliseconds\n" +
-                        "Max memory usage: " + maxMemoryUsage / (1024 * 1024) + " MB\n");
+                "Index size: " + String.format("%.1f", IndexDirectories.sizeInBytes(index) / (1024.0 * 1024)) + " MB\n");
 
 
         // Prepare the content for the metrics file
@@ -107,118 +160,82 @@ public class BuildIndexLuceneQuantized {
 
         // Print the final metrics
         System.out.println(metricsContent);
+    }
 
-        // Perform a basic vector search using the quantized byte vector.
-        int k = 5; // Number of nearest neighbors
-        IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(index));
-
-        // Load fvec queries from  using VectorFileLoader
-        ArrayList<float[]> queries = VectorFileLoader.readFvecs("/Users/tiernan.lindauer/IdeaProjects/jvector/fvec/wikipedia_squad/100k/cohere_embed-english-v3.0_1024_query_vectors_10000.fvec");
-
-        int queryIndex = 0;
-        for (float[] query: queries) {
-            byte[] queryByte = quantizeToByteVector(query, min, max);
-            KnnByteVectorQuery knnQuery2 = new KnnByteVectorQuery("vector", queryByte, k);
-            TopDocs topDocs2 = searcher.search(knnQuery2, k);
-
-            System.out.println("Example Vector Search Query Found " + topDocs2.totalHits + ":");
-            for (int i = 0; i < topDocs2.scoreDocs.length; i++) {
-                System.out.println("\t- Doc ID: " + topDocs2.scoreDocs[i].doc + ", Score: " + topDocs2.scoreDocs[i].score);
-            }
-            queryIndex++;
-            if (queryIndex > 10) {
-                break;
+    private static ScalarQuantizer calibrate(String fvecFilePath) throws IOException {
+        try (var file = MappedVectorFile.open(fvecFilePath)) {
+            if (clipPercentile < 100) {
+                // Percentiles need the values themselves, so they are taken from a sample spread over the file
+                return ScalarQuantizer.train(file, calibrationSampleSize, perDimension, clipPercentile);
             }
+            return ScalarQuantizer.fromRange(VectorRange.scan(file, perDimension), file.dimension(), perDimension);
         }
-
-        // Close the index
-        index.close();
     }
 
-    private static float[] findMinMaxValues(String txtFilePath) throws IOException {
-        float min = Float.MAX_VALUE;
-        float max = Float.MIN_VALUE;
-
-
-
-        return new float[]{min, max};
-    }
-
-    private static float loadFvecsAndIndex(IndexWriter writer, String fvecFilePath, float min, float max) {
-        ProgressBar progressBar = new ProgressBar(numberOfVectorsToIndex);
-        long totalIndexLatency = 0;
-        long count = 0;
-        try (var dis = new DataInputStream(new BufferedInputStream(new FileInputStream(fvecFilePath)))) {
-            while (dis.available() > 0) {
-                long start = System.currentTimeMillis();
-                var dimension = Integer.reverseBytes(dis.readInt());
-                assert dimension > 0 : dimension;
-                var buffer = new byte[dimension * Float.BYTES];
-                dis.readFully(buffer);
-                var byteBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
-
-                var vector = new float[dimension];
-                var floatBuffer = byteBuffer.asFloatBuffer();
-                floatBuffer.get(vector);
-
-                byte[] byteVector = quantizeToByteVector(vector, min, max);
-                addDoc(writer, "title", byteVector);
-                long end = System.currentTimeMillis();
-                totalIndexLatency += end - start;
-                count++;
-                progressBar.update();
-            }
+    private static float loadFvecsAndIndex(IndexWriter writer, String fvecFilePath, ScalarQuantizer quantizer) {
+        try (var file = MappedVectorFile.open(fvecFilePath)) {
+            FvecIngestPipeline.Stats stats = runPipeline(writer, file, quantizer, new LongAdder());
+            return stats.averageIndexLatencyMillis();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return (float) totalIndexLatency / count;
     }
 
-    private static float loadDatasetAndIndex(IndexWriter writer, String txtFilePath, int numThreads, int nToIndex, float min, float max) throws InterruptedException, ExecutionException, IOException {
-        ConcurrentLinkedQueue<Long> metrics = new ConcurrentLinkedQueue<>();
-
-        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
-        CompletionService<Long> completionService = new ExecutorCompletionService<>(executorService);
-
-        try (BufferedReader br = new BufferedReader(new FileReader(txtFilePath))) {
-            String line;
-            ConcurrentLinkedQueue<TitleEmbPair> batch = new ConcurrentLinkedQueue<>();
-            int batchSize = 1000;
-            ProgressBar progressBar = new ProgressBar(nToIndex);
-
-            while ((line = br.readLine()) != null) {
-                batch.add(parseLine(line));
-
-                if (batch.size() >= batchSize) {
-                    submitBatch(writer, batch, completionService, progressBar, min, max);
-                    batch.clear();
-                }
-            }
-
-            if (!batch.isEmpty()) {
-                submitBatch(writer, batch, completionService, progressBar, min, max);
-            }
-        }
-
-        for (int i = 0; i < numThreads; i++) {
-            completionService.submit(() -> null);
-        }
-
-        for (int i = 0; i < numThreads; i++) {
-            Future<Long> future = completionService.take();
-            if (future != null) {
-                metrics.add(future.get());
+    private static float loadFvecsAndIndexStreaming(IndexWriter writer, String fvecFilePath, int sampleSize, float margin) {
+        try (var file = MappedVectorFile.open(fvecFilePath)) {
+            // The sample is the only part of the file that is read before indexing, and it is dropped once trained
+            int sampled = Math.min(sampleSize, file.size());
+            float[][] sample = new float[sampled][];
+            for (int ord = 0; ord < sampled; ord++) {
+                sample[ord] = file.readFloats(ord);
             }
+            quantizer = ScalarQuantizer.train(sample, sampled, perDimension, clipPercentile).widen(margin);
+            System.out.println("Estimated the int8 quantization range from the first " + sampled + " vectors.");
+            sample = null;
+
+            LongAdder clampedValues = new LongAdder();
+            FvecIngestPipeline.Stats stats = runPipeline(writer, file, quantizer, clampedValues);
+            System.out.println("Clamped " + clampedValues.sum() + " of " + (long) file.size() * file.dimension()
+                    + " values outside the estimated range.");
+            return stats.averageIndexLatencyMillis();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        executorService.shutdown();
-
-        long sum = 0;
-        for (long metric : metrics) {
-            sum += metric;
+    private static FvecIngestPipeline.Stats runPipeline(IndexWriter writer, MappedVectorFile file, ScalarQuantizer quantizer,
+                                                        LongAdder clampedValues) throws IOException {
+        // Indexing threads quantize straight out of the mapping, so the reader stage only hands out record ranges
+        FvecIngestPipeline pipeline = FvecIngestPipeline.configured(file, false)
+                .withProgressBar(new ProgressBar(file.size()))
+                .withLatencies(latencies);
+        // Per vector, inside the addDocuments call it is also counted in; one histogram per indexing thread
+        List<LatencyHistogram> quantizeLatencies = Collections.synchronizedList(new ArrayList<>());
+        try {
+            FvecIngestPipeline.Stats stats = pipeline.run(() -> {
+                // Per-thread buffer; Lucene copies the value when the document is added
+                byte[] byteVector = new byte[file.dimension()];
+                LatencyHistogram quantizeLatency = new LatencyHistogram();
+                quantizeLatencies.add(quantizeLatency);
+                return block -> writer.addDocuments(documents.get().bytes(block.start(), block.count(), "title", i -> {
+                    int ord = block.start() + i;
+                    long start = System.nanoTime();
+                    int clamped = quantizer.quantize(file.buffer(ord), file.position(ord), byteVector);
+                    quantizeLatency.recordSince(start);
+                    if (clamped > 0) {
+                        clampedValues.add(clamped);
+                    }
+                    return byteVector;
+                }));
+            });
+            SharedLatencyHistogram quantize = latencies.histogram("quantize");
+            quantizeLatencies.forEach(quantize::merge);
+            System.out.println("\n" + stats);
+            return stats;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
-
-        return (float) sum / metrics.size();
     }
 
     private static void logMemoryUsage(String phase) {
@@ -230,48 +247,6 @@ public class BuildIndexLuceneQuantized {
         System.out.println("\nMemory used " + phase + ": " + usedMemoryMB + " MB");
     }
 
-    private static void submitBatch(IndexWriter writer, ConcurrentLinkedQueue<TitleEmbPair> batch, CompletionService<Long> completionService, ProgressBar progressBar, float min, float max) {
-        for (TitleEmbPair pair : batch) {
-            completionService.submit(() -> {
-                ConcurrentLinkedQueue<Float> embeddingList = pair.getEmb();
-                float[] embeddingArray = new float[embeddingList.size()];
-                int j = 0;
-                for (Float vec : embeddingList) {
-                    embeddingArray[j++] = vec;
-                }
-                byte[] byteVector = quantizeToByteVector(embeddingArray, min, max);
-
-                long start = System.currentTimeMillis();
-                addDoc(writer, pair.getTitle(), byteVector);
-                long end = System.currentTimeMillis();
-                progressBar.update();
-                return end - start;
-            });
-        }
-    }
-
-    private static TitleEmbPair parseLine(String line) {
-        String[] parts = line.split("\t");
-        String title = parts[0];
-        String[] embStrs = parts[1].split(",");
-        ConcurrentLinkedQueue<Float> emb = new ConcurrentLinkedQueue<>();
-        for (String embStr : embStrs) {
-            emb.add((float) Double.parseDouble(embStr));
-        }
-        return new TitleEmbPair(title, emb);
-    }
-
-    private static void addDoc(IndexWriter writer, String title, byte[] vector) {
-        Document doc = new Document();
-        doc.add(new TextField("title", title, TextField.Store.YES));
-        doc.add(new KnnByteVectorField("vector", vector));
-        try {
-            writer.addDocument(doc);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     private static float[] loadQuery(String queryJsonPath) {
         // Query file will have a single field “emb”
         ObjectMapper objectMapper = new ObjectMapper();
@@ -289,43 +264,4 @@ public class BuildIndexLuceneQuantized {
 
         return query;
     }
-
-    private static void monitorMemoryUsage() {
-        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
-        while (!Thread.currentThread().isInterrupted()) {
-            MemoryUsage heapMemoryUsage = memoryBean.getHeapMemoryUsage();
-            long usedMemory = heapMemoryUsage.getUsed();
-            if (usedMemory > maxMemoryUsage) {
-                maxMemoryUsage = usedMemory;
-            }
-            try {
-                Thread.sleep(memorySleepAmount); // Adjust the sleep interval as needed
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-    }
-
-    private static byte[] quantizeToByteVector(float[] floatVector, float min, float max) {
-        int length = floatVector.length;
-        byte[] result = new byte[length];
-
-        // Edge case: If all values are the same, set all to 0
-        if (min == max) {
-            return result; // All zeros
-        }
-
-        for (int i = 0; i < length; i++) {
-            // Normalize the float value to [0, 1]
-            float normalizedValue = (floatVector[i] - min) / (max - min);
-
-            // Scale and shift to the range [0, 255]
-            int quantizedValue = Math.round(normalizedValue * 255);
-
-            // Convert to the byte range [-128, 127]
-            result[i] = (byte) (quantizedValue - 128);
-        }
-
-        return result;
-    }
 }
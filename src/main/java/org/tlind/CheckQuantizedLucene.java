@@ -1,10 +1,6 @@
 package org.tlind;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.KnnByteVectorField;
-import org.apache.lucene.document.KnnFloatVectorField;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
@@ -12,32 +8,33 @@ import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.KnnByteVectorQuery;
 import org.apache.lucene.search.KnnFloatVectorQuery;
-import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.MemoryUsage;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
 
 public class CheckQuantizedLucene {
-    private static final int memorySleepAmount = 100; // Sleep interval in milliseconds -- set as needed
     private static final int numberOfVectorsToIndex = 100000; // Adjust based on your dataset size
-    private static volatile long maxMemoryUsage = 0;
+    private static final int batchSize = Integer.getInteger("batchSize", 1000); // Documents per addDocuments call
+    // Quantizer settings, see ScalarQuantizer; a sample of the first lines is used when clipping or per-dimension
+    private static final boolean perDimension = Boolean.getBoolean("perDimension");
+    private static final double clipPercentile = Double.parseDouble(System.getProperty("clipPercentile", "100"));
+    private static final int calibrationSampleSize = Integer.getInteger("calibrationSampleSize", 10_000);
+
+    // One document per indexing thread and index, refilled for every vector and tagged with its ordinal in the store
+    private static final ThreadLocal<ReusableVectorDocument> floatDocuments =
+            ThreadLocal.withInitial(() -> new ReusableVectorDocument("unique_id", "vector").withOrdinals(VectorOrdinals.FIELD));
+    private static final ThreadLocal<ReusableVectorDocument> quantizedDocuments =
+            ThreadLocal.withInitial(() -> new ReusableVectorDocument("unique_id", "vector").withOrdinals(VectorOrdinals.FIELD));
 
     public static void main(String[] args) throws Exception {
-        Thread memoryMonitor = new Thread(CheckQuantizedLucene::monitorMemoryUsage);
-        memoryMonitor.start();
+        MemoryProfiler profiler = MemoryProfiler.start("parse");
 
         String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
         System.out.println("Lucene Bench\nTest run on: " + timeStamp);
@@ -53,26 +50,32 @@ public class CheckQuantizedLucene {
         IndexWriterConfig groundTruthConfig = new IndexWriterConfig(analyzer);
         groundTruthConfig.setMergePolicy(new LogByteSizeMergePolicy());
         groundTruthConfig.setRAMBufferSizeMB(256.0);
-        IndexWriter groundTruthWriter = new IndexWriter(groundTruthIndex, groundTruthConfig);
+        IndexWriter groundTruthWriter = new IndexWriter(groundTruthIndex, VectorCodecs.configure(groundTruthConfig));
 
         IndexWriterConfig queryConfig = new IndexWriterConfig(analyzer);
         queryConfig.setMergePolicy(new LogByteSizeMergePolicy());
         queryConfig.setRAMBufferSizeMB(128.0);
-        IndexWriter queryWriter = new IndexWriter(queryIndex, queryConfig);
+        IndexWriter queryWriter = new IndexWriter(queryIndex, VectorCodecs.configure(queryConfig));
 
         String txtFilePath = args[0];
 
-        // Find min and max values for quantization
-        float[] minMax = findMinMaxValues(txtFilePath);
-        float min = minMax[0];
-        float max = minMax[1];
+        // Parse the file once; calibration, both indexes and the exact search all read this store
+        long parseStart = System.currentTimeMillis();
+        KNN store = new KNN();
+        store.loadVectors(txtFilePath, numberOfVectorsToIndex);
+        System.out.println("Parsed " + store.size() + " vectors of " + store.dimension() + " dimensions in "
+                + (System.currentTimeMillis() - parseStart) + " milliseconds");
 
-        loadDatasetAndIndex(groundTruthWriter, txtFilePath, Runtime.getRuntime().availableProcessors(), numberOfVectorsToIndex, min, max, false);
-        loadDatasetAndIndex(queryWriter, txtFilePath, Runtime.getRuntime().availableProcessors(), numberOfVectorsToIndex, min, max, true);
+        // Find the quantization intervals
+        ScalarQuantizer quantizer = calibrate(store);
+
+        profiler.phase("index");
+        indexConcurrently(groundTruthWriter, queryWriter, store, Runtime.getRuntime().availableProcessors(), quantizer);
 
         logMemoryUsage("after indexing");
 
         System.out.println("\nIndexing complete. Merging segments...");
+        profiler.phase("merge");
 
         long startMergeTime = System.currentTimeMillis();
 
@@ -80,7 +83,7 @@ public class CheckQuantizedLucene {
         queryWriter.forceMerge(1);
 
         long endMergeTime = System.currentTimeMillis();
-        System.out.println("\nMerge time: " + (endMergeTime - startMergeTime) + " milliseconds");
+        System.out.println("\nMerge time (" + VectorCodecs.describe() + "): " + (endMergeTime - startMergeTime) + " milliseconds");
 
         groundTruthWriter.close();
         queryWriter.close();
@@ -88,126 +91,72 @@ public class CheckQuantizedLucene {
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
 
-        memoryMonitor.interrupt();
-
         StringBuilder metricsContent = new StringBuilder(
-                "\nTotal execution time: " + duration + " milliseconds\n" +
-                        "Max memory usage: " + maxMemoryUsage / (1024 * 1024) + " MB\n");
+                "\nTotal execution time: " + duration + " milliseconds\n");
 
         System.out.println(metricsContent);
 
+        profiler.phase("search");
         IndexSearcher groundTruthSearcher = new IndexSearcher(DirectoryReader.open(groundTruthIndex));
         IndexSearcher querySearcher = new IndexSearcher(DirectoryReader.open(queryIndex));
 
         int k = 5; // Number of nearest neighbors
-        computeMetrics(groundTruthSearcher, querySearcher, txtFilePath, min, max, k);
+        computeMetrics(groundTruthSearcher, querySearcher, store, quantizer, k);
+
+        profiler.close();
+        System.out.println("\nMemory profile:\n" + profiler.report());
 
         groundTruthIndex.close();
         queryIndex.close();
     }
 
-    private static void loadDatasetAndIndex(IndexWriter writer, String txtFilePath, int numThreads, int nToIndex, float min, float max, boolean quantized) throws InterruptedException, ExecutionException, IOException {
+    /** Feeds the same batches of the store to the float and the quantized writer at the same time. */
+    private static void indexConcurrently(IndexWriter floatWriter, IndexWriter quantizedWriter, KNN store, int numThreads,
+                                          ScalarQuantizer quantizer) throws InterruptedException, ExecutionException {
         ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
-        CompletionService<Void> completionService = new ExecutorCompletionService<>(executorService);
-
-        try (BufferedReader br = new BufferedReader(new FileReader(txtFilePath))) {
-            String line;
-            ConcurrentLinkedQueue<TitleEmbPair> batch = new ConcurrentLinkedQueue<>();
-            int batchSize = 1000;
-            int count = 0;
-            while ((line = br.readLine()) != null && count < nToIndex) {
-                batch.add(parseLine(line));
-                count++;
-
-                if (batch.size() >= batchSize) {
-                    submitBatch(writer, batch, completionService, min, max, quantized);
-                    batch.clear();
-                }
-            }
-
-            if (!batch.isEmpty()) {
-                submitBatch(writer, batch, completionService, min, max, quantized);
-            }
+        CompletionService<Long> completionService = new ExecutorCompletionService<>(executorService);
+        int batches = 0;
+
+        for (int start = 0; start < store.size(); start += batchSize) {
+            int count = Math.min(batchSize, store.size() - start);
+            submitBatch(floatWriter, store, start, count, completionService, quantizer, false);
+            submitBatch(quantizedWriter, store, start, count, completionService, quantizer, true);
+            batches += 2;
         }
 
-        for (int i = 0; i < numThreads; i++) {
-            completionService.submit(() -> null);
-        }
-
-        for (int i = 0; i < numThreads; i++) {
-            completionService.take().get();
+        // Every batch has to finish, so wait for as many results as were submitted
+        long totalBatchNanos = 0;
+        for (int i = 0; i < batches; i++) {
+            totalBatchNanos += completionService.take().get();
         }
 
         executorService.shutdown();
-    }
 
-    private static void submitBatch(IndexWriter writer, ConcurrentLinkedQueue<TitleEmbPair> batch, CompletionService<Void> completionService, float min, float max, boolean quantized) {
-        for (TitleEmbPair pair : batch) {
-            completionService.submit(() -> {
-                float[] embeddingArray = new float[pair.getEmb().size()];
-                int j = 0;
-                for (Float vec : pair.getEmb()) {
-                    embeddingArray[j++] = vec;
-                }
-
-                if (quantized) {
-                    byte[] quantizedVector = quantizeToByteVector(embeddingArray, min, max);
-                    addQuantizedDoc(writer, pair.getTitle(), quantizedVector);
-                } else {
-                    addDoc(writer, pair.getTitle(), embeddingArray);
-                }
-                return null;
-            });
-        }
-    }
-
-    private static void addDoc(IndexWriter writer, String title, float[] vector) {
-        Document doc = new Document();
-        doc.add(new TextField("unique_id", title, TextField.Store.YES)); // Use unique ID
-        doc.add(new KnnFloatVectorField("vector", vector));
-        try {
-            writer.addDocument(doc);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static void addQuantizedDoc(IndexWriter writer, String title, byte[] vector) {
-        Document doc = new Document();
-        doc.add(new TextField("unique_id", title, TextField.Store.YES)); // Use unique ID
-        doc.add(new KnnByteVectorField("vector", vector));
-        try {
-            writer.addDocument(doc);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static TitleEmbPair parseLine(String line) {
-        String[] parts = line.split("\t");
-        String uniqueId = parts[0]; // Unique ID from the first column
-        String[] embStrs = parts[2].split(","); // Embeddings from the third column
-        ConcurrentLinkedQueue<Float> emb = new ConcurrentLinkedQueue<>();
-        for (String embStr : embStrs) {
-            emb.add((float) Double.parseDouble(embStr));
-        }
-        return new TitleEmbPair(uniqueId, emb);
+        System.out.println("Indexed " + store.size() + " documents into both indexes in " + batches + " batches of up to "
+                + batchSize + ", average batch latency: " + totalBatchNanos / 1e6 / Math.max(1, batches) + " milliseconds");
     }
 
-    private static void monitorMemoryUsage() {
-        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
-        while (!Thread.currentThread().isInterrupted()) {
-            MemoryUsage heapMemoryUsage = memoryBean.getHeapMemoryUsage();
-            long usedMemory = heapMemoryUsage.getUsed();
-            if (usedMemory > maxMemoryUsage) {
-                maxMemoryUsage = usedMemory;
-            }
-            try {
-                Thread.sleep(memorySleepAmount); // Adjust the sleep interval as needed
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+    /** Indexes records {@code [start, start + count)} of the store as one task with a single addDocuments call and returns its latency in nanoseconds. */
+    private static void submitBatch(IndexWriter writer, KNN store, int start, int count, CompletionService<Long> completionService, ScalarQuantizer quantizer, boolean quantized) {
+        completionService.submit(() -> {
+            // Lucene copies the vector when the document is added, so one buffer per batch is enough
+            float[] vector = new float[store.dimension()];
+            long begin = System.nanoTime();
+            if (quantized) {
+                byte[] quantizedVector = new byte[store.dimension()];
+                writer.addDocuments(quantizedDocuments.get().bytes(start, count,
+                        i -> store.id(start + i),
+                        i -> {
+                            quantizer.quantize(store.vector(start + i, vector), quantizedVector);
+                            return quantizedVector;
+                        }));
+            } else {
+                writer.addDocuments(floatDocuments.get().floats(start, count,
+                        i -> store.id(start + i),
+                        i -> store.vector(start + i, vector)));
             }
-        }
+            return System.nanoTime() - begin;
+        });
     }
 
     private static void logMemoryUsage(String phase) {
@@ -218,63 +167,63 @@ public class CheckQuantizedLucene {
         System.out.println("\nMemory used " + phase + ": " + usedMemoryMB + " MB");
     }
 
-    private static void computeMetrics(IndexSearcher groundTruthSearcher, IndexSearcher querySearcher, String txtFilePath, float min, float max, int k) throws IOException {
-        try (BufferedReader br = new BufferedReader(new FileReader(txtFilePath))) {
-            String line;
-            int queryCount = 0;
-            int totalQueries = 100; // Number of queries to test
-            int relevantRetrieved = 0;
-            int relevantRetrievedQuantized = 0;
-
-            KNN knn = new KNN();
-            knn.loadVectors(txtFilePath);
-
-            while ((line = br.readLine()) != null && queryCount < totalQueries) {
-                TitleEmbPair pair = parseLine(line);
-                float[] queryVector = new float[pair.getEmb().size()];
-                int j = 0;
-                for (Float vec : pair.getEmb()) {
-                    queryVector[j++] = vec;
-                }
-
-                byte[] quantizedQueryVector = quantizeToByteVector(queryVector, min, max);
-
-                TopDocs groundTruthResults = getNearestNeighbors(groundTruthSearcher, queryVector, k);
-                TopDocs queryResultsQuantized = getNearestNeighborsQuantized(querySearcher, quantizedQueryVector, k);
-                List<Vector> knnResults = knn.computeKNN(queryVector, k);
+    private static void computeMetrics(IndexSearcher groundTruthSearcher, IndexSearcher querySearcher, KNN store, ScalarQuantizer quantizer, int k) throws IOException {
+        int totalQueries = Math.min(100, store.size()); // Number of queries to test
+        int relevantRetrieved = 0;
+        int relevantRetrievedQuantized = 0;
+        int relevantRetrievedReranked = 0;
+        long exactNanos = 0;
+        // The quantized index searched again in two phases, reranking with the floats of the store
+        RerankingSearcher reranking = new RerankingSearcher(querySearcher, "vector", quantizer, RerankingSearcher.FloatVectors.of(store));
+
+        float[] queryVector = new float[store.dimension()];
+        for (int queryCount = 0; queryCount < totalQueries; queryCount++) {
+            store.vector(queryCount, queryVector);
+
+            byte[] quantizedQueryVector = quantizer.quantize(queryVector);
+
+            TopDocs groundTruthResults = getNearestNeighbors(groundTruthSearcher, queryVector, k);
+            TopDocs queryResultsQuantized = getNearestNeighborsQuantized(querySearcher, quantizedQueryVector, k);
+            TopDocs queryResultsReranked = reranking.search(queryVector, k, k);
+            long start = System.nanoTime();
+            int[] knnResults = store.computeKNN(queryVector, k);
+            exactNanos += System.nanoTime() - start;
+
+            // Both indexes carry the store ordinals, so hits are compared without loading stored fields
+            Set<Integer> groundTruthOrdinals = new HashSet<>();
+            for (int ordinal : VectorOrdinals.of(groundTruthSearcher.getIndexReader(), groundTruthResults.scoreDocs)) {
+                groundTruthOrdinals.add(ordinal);
+            }
 
-                Set<String> groundTruthIds = new HashSet<>();
-                for (ScoreDoc scoreDoc : groundTruthResults.scoreDocs) {
-                    Document doc = groundTruthSearcher.doc(scoreDoc.doc);
-                    String uniqueId = doc.get("unique_id");
-                    groundTruthIds.add(uniqueId);
+            for (int ordinal : knnResults) {
+                if (groundTruthOrdinals.contains(ordinal)) {
+                    relevantRetrieved++;
                 }
+            }
 
-                for (Vector result : knnResults) {
-                    if (groundTruthIds.contains(result.id)) {
-                        relevantRetrieved++;
-                    }
+            for (int ordinal : VectorOrdinals.of(querySearcher.getIndexReader(), queryResultsQuantized.scoreDocs)) {
+                if (groundTruthOrdinals.contains(ordinal)) {
+                    relevantRetrievedQuantized++;
                 }
+            }
 
-                for (ScoreDoc scoreDoc : queryResultsQuantized.scoreDocs) {
-                    Document doc = querySearcher.doc(scoreDoc.doc);
-                    String uniqueId = doc.get("unique_id");
-                    if (groundTruthIds.contains(uniqueId)) {
-                        relevantRetrievedQuantized++;
-                    }
+            for (int ordinal : VectorOrdinals.of(querySearcher.getIndexReader(), queryResultsReranked.scoreDocs)) {
+                if (groundTruthOrdinals.contains(ordinal)) {
+                    relevantRetrievedReranked++;
                 }
-
-                queryCount++;
             }
+        }
 
-            double recall = (double) relevantRetrieved / (k * totalQueries);
-            double accuracy = recall;
-            double recallQuantized = (double) relevantRetrievedQuantized / (k * totalQueries);
-            double accuracyQuantized = recallQuantized;
+        double recall = (double) relevantRetrieved / (k * totalQueries);
+        double accuracy = recall;
+        double recallQuantized = (double) relevantRetrievedQuantized / (k * totalQueries);
+        double accuracyQuantized = recallQuantized;
+        double accuracyReranked = (double) relevantRetrievedReranked / (k * totalQueries);
 
-            System.out.println("Accuracy (Unquantized): " + accuracy);
-            System.out.println("Accuracy (Quantized): " + accuracyQuantized);
-        }
+        System.out.println("Exact search: " + exactNanos / 1e6 / Math.max(1, totalQueries) + " milliseconds per query");
+        System.out.println("Accuracy (Unquantized): " + accuracy);
+        System.out.println("Accuracy (Quantized): " + accuracyQuantized);
+        System.out.println("Accuracy (Quantized, reranked x" + reranking.getOverFetch() + "): " + accuracyReranked);
     }
 
     private static TopDocs getNearestNeighbors(IndexSearcher searcher, float[] queryVector, int k) throws IOException {
@@ -287,51 +236,37 @@ public class CheckQuantizedLucene {
         return searcher.search(knnQuery, k);
     }
 
-    private static float[] findMinMaxValues(String txtFilePath) throws IOException {
-        float min = Float.MAX_VALUE;
-        float max = Float.MIN_VALUE;
-
-        try (BufferedReader br = new BufferedReader(new FileReader(txtFilePath))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                TitleEmbPair pair = parseLine(line);
-                for (float value : pair.getEmb()) {
-                    if (value < min) {
-                        min = value;
-                    }
-                    if (value > max) {
-                        max = value;
-                    }
-                }
+    private static ScalarQuantizer calibrate(KNN store) {
+        if (perDimension || clipPercentile < 100) {
+            // Only the trained quantizers read a sample; the plain global range comes from one pass over the store
+            int sampled = Math.min(calibrationSampleSize, store.size());
+            float[][] sample = new float[sampled][];
+            for (int i = 0; i < sampled; i++) {
+                sample[i] = store.vector(i);
             }
+            return ScalarQuantizer.train(sample, sampled, perDimension, clipPercentile);
         }
-
-        return new float[]{min, max};
+        float[] minMax = findMinMaxValues(store);
+        return ScalarQuantizer.global(minMax[0], minMax[1], store.dimension());
     }
 
-    private static byte[] quantizeToByteVector(float[] floatVector, float min, float max) {
-        int length = floatVector.length;
-        byte[] result = new byte[length];
-
-        // Edge case: If all values are the same, set all to 0
-        if (min == max) {
-            return result; // All zeros
-        }
-
-        // Quantize the values to the range of int8 [-128, 127]
-        for (int i = 0; i < length; i++) {
-            // Normalize the float value to [0, 1]
-            float normalizedValue = (floatVector[i] - min) / (max - min);
-
-            // Scale and shift to the range [-128, 127]
-            int quantizedValue = Math.round(normalizedValue * 255) - 128;
-
-            // Ensure the value fits in the byte range
-            quantizedValue = Math.max(-128, Math.min(127, quantizedValue));
-
-            result[i] = (byte) quantizedValue;
+    private static float[] findMinMaxValues(KNN store) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+
+        float[] vector = new float[store.dimension()];
+        for (int ord = 0; ord < store.size(); ord++) {
+            store.vector(ord, vector);
+            for (float value : vector) {
+                if (value < min) {
+                    min = value;
+                }
+                if (value > max) {
+                    max = value;
+                }
+            }
         }
 
-        return result;
+        return new float[]{min, max};
     }
-}
\ No newline at end of file
+}
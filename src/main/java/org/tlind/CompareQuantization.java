@@ -0,0 +1,229 @@
+package org.tlind;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds the same fvec several ways and compares build time, live heap, index size and the {@link RecallEvaluator}
+ * measures:
+ * <ul>
+ *     <li>{@code float}: float vectors in plain HNSW, as {@code BuildIndexLucene} builds them</li>
+ *     <li>{@code int8}: our own {@link ScalarQuantizer} bytes in {@code KnnByteVectorField}s, as
+ *     {@code BuildIndexLuceneQuantized} builds them, searched as is and reranked with the float vectors of the base
+ *     file ({@link RerankingSearcher})</li>
+ *     <li>{@code lucene-int7}: float vectors in {@code Lucene99HnswScalarQuantizedVectorsFormat}, which quantizes per
+ *     segment with a confidence-interval range and keeps the floats on disk for merges</li>
+ *     <li>{@code pq}: {@link ProductQuantizer} codes ({@code -DpqSubspaces}, default one per 8 dimensions, and
+ *     {@code -DpqBits}, default 8) in a {@link ProductQuantizedIndex}, scanned by ADC distance, alone and rescored with
+ *     the float vectors. The same codes then rerank the candidates of the {@code lucene-int7} graph</li>
+ *     <li>{@code binary}: one sign bit per dimension in a {@link BinaryVectorIndex}, scanned by Hamming distance, alone
+ *     and rescored with the float vectors of the base file ({@code -DbinaryCentered=false} for raw signs). Its index size
+ *     is the codes in memory; there is no Lucene index</li>
+ * </ul>
+ * Usage: {@code CompareQuantization <base.fvec> <query.fvec> <groundtruth.ivec>}
+ * <p>
+ * Live heap is the largest heap in use after a collection during the build ({@link MemoryProfiler}), "-" when none ran.
+ * It includes the index itself when {@code -Ddirectory=heap}, so use an on-disk directory to compare ingestion memory
+ * alone. Each mode also prints its full memory profile, with GC pauses and direct and mapped buffers.
+ */
+public class CompareQuantization {
+    private enum Mode { FLOAT, INT8, LUCENE_INT7, BINARY }
+
+    private static final boolean perDimension = Boolean.getBoolean("perDimension");
+    private static final boolean binaryCentered = Boolean.parseBoolean(System.getProperty("binaryCentered", "true"));
+    private static final int pqSubspaces = Integer.getInteger("pqSubspaces", 0); // 0: one per 8 dimensions
+    private static final int pqBits = Integer.getInteger("pqBits", 8);
+
+    // One document per indexing thread, refilled for every vector and tagged with its ordinal for recall
+    private static final ThreadLocal<ReusableVectorDocument> documents =
+            ThreadLocal.withInitial(() -> new ReusableVectorDocument("title", "vector").withOrdinals(VectorOrdinals.FIELD));
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: CompareQuantization <base.fvec> <query.fvec> <groundtruth.ivec>");
+            System.exit(1);
+        }
+
+        RecallEvaluator evaluator = RecallEvaluator.load(args[1], args[2]);
+
+        List<String> rows = new ArrayList<>();
+        try (var base = MappedVectorFile.open(args[0])) {
+            // The product-quantized codes are also tried as the rescoring tier of the Lucene int7 graph, so they come first
+            ProductQuantizedIndex productQuantized = runProductQuantized(base, evaluator, rows);
+            for (Mode mode : Mode.values()) {
+                rows.addAll(run(mode, base, evaluator, productQuantized));
+            }
+        }
+
+        System.out.println("\nQuantization comparison (" + VectorCodecs.describe() + ", recall@" + evaluator.k() + " with "
+                + RecallEvaluator.defaultNumCandidates() + " candidates over " + evaluator.queries().length + " queries):");
+        System.out.println("mode            build (ms)  live heap (MB)  index (MB)  recall     MRR   search (ms/q)      QPS");
+        rows.forEach(System.out::println);
+    }
+
+    private static List<String> run(Mode mode, MappedVectorFile base, RecallEvaluator evaluator,
+                                    ProductQuantizedIndex productQuantized) throws IOException, InterruptedException {
+        if (mode == Mode.BINARY) {
+            return runBinary(base, evaluator);
+        }
+        String name = mode.name().toLowerCase(Locale.ROOT).replace('_', '-');
+        System.out.println("\nBuilding " + base.size() + " vectors as " + name);
+
+        System.gc();
+        // Closed on every exit, so a failed build does not leave its GC listeners registered
+        try (MemoryProfiler profiler = MemoryProfiler.start("index");
+             Directory index = IndexDirectories.open("CompareQuantization", name)) {
+            long start = System.currentTimeMillis();
+            // Calibration is a full pass over the file, so it is part of the int8 build cost
+            ScalarQuantizer quantizer = mode == Mode.INT8
+                    ? ScalarQuantizer.fromRange(VectorRange.scan(base, perDimension), base.dimension(), perDimension)
+                    : null;
+            build(index, base, mode, quantizer);
+            long buildMillis = System.currentTimeMillis() - start;
+
+            profiler.phase("search");
+            long peakHeap = profiler.getPhase("index").getPeakLiveBytes();
+            long size = IndexDirectories.sizeInBytes(index);
+
+            try (DirectoryReader reader = DirectoryReader.open(index)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                RecallEvaluator.Result result = quantizer != null
+                        ? evaluator.evaluateBytes(searcher, "vector", quantizer, RecallEvaluator.defaultNumCandidates())
+                        : evaluator.evaluateFloats(searcher, "vector", RecallEvaluator.defaultNumCandidates());
+                System.out.println(result);
+                List<String> rows = new ArrayList<>();
+                rows.add(row(name, buildMillis, peakHeap, size, result));
+                if (quantizer != null) {
+                    // Same index searched in two phases, with the base file as the float side store
+                    RerankingSearcher reranking = new RerankingSearcher(searcher, "vector", quantizer,
+                            RerankingSearcher.FloatVectors.of(base));
+                    RecallEvaluator.Result reranked = evaluator.evaluateReranked(reranking, RecallEvaluator.defaultNumCandidates());
+                    System.out.println("Reranked x" + reranking.getOverFetch() + ": " + reranked);
+                    rows.add(row(name + "+rerank", buildMillis, peakHeap, size, reranked));
+                }
+                if (mode == Mode.LUCENE_INT7) {
+                    // The graph's candidates reordered by their ADC distance; the codes add to the index footprint
+                    RerankingSearcher reranking = RerankingSearcher.floats(searcher, "vector", productQuantized,
+                            RerankingSearcher.defaultOverFetch());
+                    RecallEvaluator.Result reranked = evaluator.evaluateReranked(reranking, RecallEvaluator.defaultNumCandidates());
+                    System.out.println("Reranked by PQ x" + reranking.getOverFetch() + ": " + reranked);
+                    rows.add(row(name + "+pq", buildMillis, peakHeap, size + productQuantized.sizeInBytes(), reranked));
+                }
+                profiler.close();
+                System.out.print(profiler.report());
+                return rows;
+            }
+        }
+    }
+
+    private static ProductQuantizedIndex runProductQuantized(MappedVectorFile base, RecallEvaluator evaluator,
+                                                             List<String> rows) throws IOException {
+        int subspaces = pqSubspaces > 0 ? pqSubspaces : Math.max(1, base.dimension() / 8);
+        System.out.println("\nTraining " + subspaces + " x " + pqBits + "-bit PQ codebooks and encoding " + base.size() + " vectors");
+
+        System.gc();
+        try (MemoryProfiler profiler = MemoryProfiler.start("index")) {
+            long start = System.currentTimeMillis();
+            ProductQuantizedIndex index = ProductQuantizedIndex.build(base, ProductQuantizer.train(base, subspaces, pqBits));
+            long buildMillis = System.currentTimeMillis() - start;
+
+            profiler.phase("search");
+            long peakHeap = profiler.getPhase("index").getPeakLiveBytes();
+
+            // ADC order alone, then rescored with the floats of the base file
+            RecallEvaluator.Result adc = evaluator.evaluateOrdinals(query -> index.candidates(query, evaluator.k()));
+            System.out.println(adc);
+            RerankingSearcher.FloatVectors vectors = RerankingSearcher.FloatVectors.of(base);
+            int overFetch = ProductQuantizedIndex.defaultOverFetch();
+            RecallEvaluator.Result rescored = evaluator.evaluateOrdinals(
+                    query -> index.search(query, evaluator.k(), overFetch, vectors));
+            System.out.println("Rescored x" + overFetch + ": " + rescored);
+
+            rows.add(row("pq", buildMillis, peakHeap, index.sizeInBytes(), adc));
+            rows.add(row("pq+rescore", buildMillis, peakHeap, index.sizeInBytes(), rescored));
+            profiler.close();
+            System.out.print(profiler.report());
+            return index;
+        }
+    }
+
+    private static List<String> runBinary(MappedVectorFile base, RecallEvaluator evaluator) throws IOException {
+        System.out.println("\nEncoding " + base.size() + " vectors as binary" + (binaryCentered ? " (centered)" : ""));
+
+        System.gc();
+        try (MemoryProfiler profiler = MemoryProfiler.start("index")) {
+            long start = System.currentTimeMillis();
+            BinaryQuantizer quantizer = binaryCentered
+                    ? BinaryQuantizer.centered(base, 10_000)
+                    : BinaryQuantizer.signs(base.dimension());
+            BinaryVectorIndex index = BinaryVectorIndex.build(base, quantizer);
+            long buildMillis = System.currentTimeMillis() - start;
+
+            profiler.phase("search");
+            long peakHeap = profiler.getPhase("index").getPeakLiveBytes();
+
+            // Hamming order alone, then rescored with the floats of the base file
+            RecallEvaluator.Result hamming = evaluator.evaluateOrdinals(query -> index.candidates(query, evaluator.k()));
+            System.out.println(hamming);
+            RerankingSearcher.FloatVectors vectors = RerankingSearcher.FloatVectors.of(base);
+            int overFetch = BinaryVectorIndex.defaultOverFetch();
+            RecallEvaluator.Result rescored = evaluator.evaluateOrdinals(
+                    query -> index.search(query, evaluator.k(), overFetch, vectors));
+            System.out.println("Rescored x" + overFetch + ": " + rescored);
+
+            List<String> rows = new ArrayList<>();
+            rows.add(row("binary", buildMillis, peakHeap, index.sizeInBytes(), hamming));
+            rows.add(row("binary+rescore", buildMillis, peakHeap, index.sizeInBytes(), rescored));
+            profiler.close();
+            System.out.print(profiler.report());
+            return rows;
+        }
+    }
+
+    private static String row(String name, long buildMillis, long peakHeap, long size, RecallEvaluator.Result result) {
+        return String.format("%-14s %11d %15s %11.1f %7.3f %7.3f %15.3f %8.0f", name, buildMillis,
+                peakHeap < 0 ? "-" : String.format("%.1f", peakHeap / (1024.0 * 1024)), size / (1024.0 * 1024), result.getRecall(), result.getMrr(),
+                result.meanLatencyMillis(), result.getQps());
+    }
+
+    private static void build(Directory index, MappedVectorFile base, Mode mode, ScalarQuantizer quantizer)
+            throws IOException, InterruptedException {
+        Codec codec = mode == Mode.LUCENE_INT7 ? VectorCodecs.scalarQuantizedCodec() : VectorCodecs.codec();
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setMergePolicy(new LogByteSizeMergePolicy());
+        config.setRAMBufferSizeMB(256.0);
+        config.setCodec(codec);
+
+        try (IndexWriter writer = new IndexWriter(index, IndexDirectories.forBuild(config))) {
+            FvecIngestPipeline pipeline = FvecIngestPipeline.configured(base, quantizer == null)
+                    .withProgressBar(new ProgressBar(base.size()));
+            if (quantizer == null) {
+                pipeline.run(() -> block -> writer.addDocuments(
+                        documents.get().floats(block.start(), block.count(), "title", block::vector)));
+            } else {
+                pipeline.run(() -> {
+                    // Per-thread buffer; Lucene copies the value when the document is added
+                    byte[] byteVector = new byte[base.dimension()];
+                    return block -> writer.addDocuments(documents.get().bytes(block.start(), block.count(), "title", i -> {
+                        int ord = block.start() + i;
+                        quantizer.quantize(base.buffer(ord), base.position(ord), byteVector);
+                        return byteVector;
+                    }));
+                });
+            }
+            writer.forceMerge(1);
+            System.out.println();
+        }
+    }
+}
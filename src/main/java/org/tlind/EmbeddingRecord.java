@@ -0,0 +1,22 @@
+package org.tlind;
+
+/**
+ * One line of a TSV embedding dump: the title (or unique id) column and its embedding as a primitive array.
+ */
+public class EmbeddingRecord {
+    private final String title;
+    private final float[] emb;
+
+    public EmbeddingRecord(String title, float[] emb) {
+        this.title = title;
+        this.emb = emb;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public float[] getEmb() {
+        return emb;
+    }
+}
@@ -0,0 +1,318 @@
+package org.tlind;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Two-stage ingestion of a mapped fvec: a reader stage cuts the file into blocks of consecutive records (optionally
+ * decoding them into reusable float arrays) and hands them through a bounded queue to N indexing threads.
+ * <p>
+ * Blocks are recycled through a fixed pool, so once the pool is exhausted the reader waits for the indexers to catch
+ * up instead of decoding the whole file ahead of them. Each indexing thread gets its own {@link BlockIndexer} from the
+ * supplied factory and can keep per-thread scratch state in it.
+ * <p>
+ * Thread count, queue depth and block size default to the {@code indexThreads}, {@code queueDepth} and
+ * {@code blockSize} system properties (see {@link #configured}). With {@link #withLatencies}, the time to decode each
+ * block goes to the report's {@code parse} histogram and every {@link BlockIndexer#index} call to
+ * {@code addDocuments}, one sample per block. Every stage records into its own histogram, merged into the report when
+ * the run ends.
+ */
+public class FvecIngestPipeline {
+    public interface BlockIndexer {
+        void index(VectorBlock block) throws IOException;
+    }
+
+    /** A run of consecutive records, {@code [start, start + count)}. */
+    public static class VectorBlock {
+        private final MappedVectorFile file;
+        private final float[][] vectors; // null when the pipeline does not decode
+        private int start;
+        private int count;
+
+        VectorBlock(MappedVectorFile file, int blockSize, boolean decode) {
+            this.file = file;
+            this.vectors = decode ? new float[blockSize][file.dimension()] : null;
+        }
+
+        public MappedVectorFile file() {
+            return file;
+        }
+
+        public int start() {
+            return start;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        /** The decoded vector for record {@code start + i}; only valid until the block is handed back. */
+        public float[] vector(int i) {
+            if (vectors == null) {
+                throw new IllegalStateException("Pipeline was created without decoding; read from file() instead");
+            }
+            return vectors[i];
+        }
+    }
+
+    private static final VectorBlock END = new VectorBlock(null, 0, false);
+    private static final long POLL_MILLIS = 100;
+
+    private final MappedVectorFile file;
+    private final int indexThreads;
+    private final int queueDepth;
+    private final int blockSize;
+    private final boolean decode;
+    private int start;
+    private int end;
+    private ProgressBar progressBar;
+    private LatencyReport latencies;
+
+    public FvecIngestPipeline(MappedVectorFile file, int indexThreads, int queueDepth, int blockSize, boolean decode) {
+        if (indexThreads < 1 || queueDepth < 1 || blockSize < 1) {
+            throw new IllegalArgumentException("indexThreads, queueDepth and blockSize must be positive");
+        }
+        this.file = file;
+        this.indexThreads = indexThreads;
+        this.queueDepth = queueDepth;
+        this.blockSize = blockSize;
+        this.decode = decode;
+        this.end = file.size();
+    }
+
+    public static FvecIngestPipeline configured(MappedVectorFile file, boolean decode) {
+        int threads = Integer.getInteger("indexThreads", Runtime.getRuntime().availableProcessors());
+        return new FvecIngestPipeline(file, threads, Integer.getInteger("queueDepth", 2 * threads),
+                Integer.getInteger("blockSize", 256), decode);
+    }
+
+    /** Restricts ingestion to records {@code [start, end)}, e.g. one shard of the file. */
+    public FvecIngestPipeline range(int start, int end) {
+        if (start < 0 || end > file.size() || start > end) {
+            throw new IllegalArgumentException("Invalid range [" + start + ", " + end + ") for " + file.size() + " records");
+        }
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    public FvecIngestPipeline withProgressBar(ProgressBar progressBar) {
+        this.progressBar = progressBar;
+        return this;
+    }
+
+    public FvecIngestPipeline withLatencies(LatencyReport latencies) {
+        this.latencies = latencies;
+        return this;
+    }
+
+    public Stats run(Supplier<? extends BlockIndexer> indexerFactory) throws IOException, InterruptedException {
+        BlockingQueue<VectorBlock> free = new ArrayBlockingQueue<>(queueDepth + indexThreads);
+        BlockingQueue<VectorBlock> work = new ArrayBlockingQueue<>(queueDepth + indexThreads);
+        for (int i = 0; i < queueDepth + indexThreads; i++) {
+            free.add(new VectorBlock(file, blockSize, decode));
+        }
+        AtomicBoolean failed = new AtomicBoolean();
+        Stats stats = new Stats(indexThreads, queueDepth, blockSize);
+
+        ExecutorService executor = Executors.newFixedThreadPool(indexThreads);
+        List<Future<StageStats>> indexers = new ArrayList<>();
+        long startTime = System.nanoTime();
+        try {
+            for (int t = 0; t < indexThreads; t++) {
+                indexers.add(executor.submit(() -> runIndexer(indexerFactory, free, work, failed)));
+            }
+            stats.reader = runReader(free, work, failed);
+            for (int t = 0; t < indexThreads; t++) {
+                offer(work, END, failed);
+            }
+            for (Future<StageStats> indexer : indexers) {
+                stats.indexers.add(indexer.get());
+            }
+        } catch (ExecutionException e) {
+            failed.set(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        stats.wallNanos = System.nanoTime() - startTime;
+        if (latencies != null) {
+            if (decode) {
+                latencies.histogram("parse").merge(stats.reader.latencies);
+            }
+            SharedLatencyHistogram indexLatencies = latencies.histogram("addDocuments");
+            stats.indexers.forEach(indexer -> indexLatencies.merge(indexer.latencies));
+        }
+        return stats;
+    }
+
+    private StageStats runReader(BlockingQueue<VectorBlock> free, BlockingQueue<VectorBlock> work, AtomicBoolean failed)
+            throws InterruptedException {
+        StageStats reader = new StageStats();
+        for (int start = this.start; start < end && !failed.get(); start += blockSize) {
+            long waitStart = System.nanoTime();
+            VectorBlock block = poll(free, failed);
+            if (block == null) {
+                break;
+            }
+            long busyStart = System.nanoTime();
+            reader.waitNanos += busyStart - waitStart;
+
+            block.start = start;
+            block.count = Math.min(blockSize, end - start);
+            if (decode) {
+                for (int i = 0; i < block.count; i++) {
+                    file.readFloats(start + i, block.vectors[i]);
+                }
+            }
+            long busy = System.nanoTime() - busyStart;
+            reader.busyNanos += busy;
+            reader.latencies.record(busy);
+            reader.vectors += block.count;
+
+            waitStart = System.nanoTime();
+            offer(work, block, failed);
+            reader.waitNanos += System.nanoTime() - waitStart;
+        }
+        return reader;
+    }
+
+    private StageStats runIndexer(Supplier<? extends BlockIndexer> indexerFactory, BlockingQueue<VectorBlock> free,
+                                  BlockingQueue<VectorBlock> work, AtomicBoolean failed)
+            throws IOException, InterruptedException {
+        StageStats stage = new StageStats();
+        try {
+            BlockIndexer indexer = indexerFactory.get();
+            while (true) {
+                long waitStart = System.nanoTime();
+                VectorBlock block = poll(work, failed);
+                if (block == null || block == END) {
+                    return stage;
+                }
+                long busyStart = System.nanoTime();
+                stage.waitNanos += busyStart - waitStart;
+
+                indexer.index(block);
+                long busy = System.nanoTime() - busyStart;
+                stage.busyNanos += busy;
+                stage.latencies.record(busy);
+                stage.vectors += block.count;
+                if (progressBar != null) {
+                    progressBar.update(block.count);
+                }
+                free.put(block);
+            }
+        } catch (Throwable e) {
+            // Any abnormal exit, including an Error such as OutOfMemoryError, has to stop the reader
+            failed.set(true);
+            throw e;
+        }
+    }
+
+    // Queue operations give up once another stage has failed, so a dead indexer cannot leave the reader blocked
+    private static VectorBlock poll(BlockingQueue<VectorBlock> queue, AtomicBoolean failed) throws InterruptedException {
+        while (!failed.get()) {
+            VectorBlock block = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (block != null) {
+                return block;
+            }
+        }
+        return null;
+    }
+
+    private static void offer(BlockingQueue<VectorBlock> queue, VectorBlock block, AtomicBoolean failed) throws InterruptedException {
+        while (!failed.get()) {
+            if (queue.offer(block, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    /** Time a stage spent working and time it spent blocked on the queues. */
+    public static class StageStats {
+        long vectors;
+        long busyNanos;
+        long waitNanos;
+        final LatencyHistogram latencies = new LatencyHistogram(); // busy time per block, written by the stage's thread only
+
+        public long getVectors() {
+            return vectors;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        double throughput() {
+            return busyNanos == 0 ? 0 : vectors * 1e9 / busyNanos;
+        }
+    }
+
+    public static class Stats {
+        private final int indexThreads;
+        private final int queueDepth;
+        private final int blockSize;
+        private StageStats reader;
+        private final List<StageStats> indexers = new ArrayList<>();
+        private long wallNanos;
+
+        Stats(int indexThreads, int queueDepth, int blockSize) {
+            this.indexThreads = indexThreads;
+            this.queueDepth = queueDepth;
+            this.blockSize = blockSize;
+        }
+
+        public long getVectors() {
+            return indexers.stream().mapToLong(StageStats::getVectors).sum();
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /** Average time an indexing thread spent per vector, in milliseconds. */
+        public float averageIndexLatencyMillis() {
+            long vectors = getVectors();
+            long busy = indexers.stream().mapToLong(StageStats::getBusyNanos).sum();
+            return vectors == 0 ? 0 : (float) (busy / 1e6 / vectors);
+        }
+
+        @Override
+        public String toString() {
+            long indexBusy = indexers.stream().mapToLong(StageStats::getBusyNanos).sum();
+            long indexWait = indexers.stream().mapToLong(StageStats::getWaitNanos).sum();
+            long vectors = getVectors();
+            return "Ingestion pipeline (" + indexThreads + " index threads, queue depth " + queueDepth
+                    + ", block size " + blockSize + "):\n"
+                    + "\t- Reader: " + reader.vectors + " vectors, " + String.format("%.0f", reader.throughput())
+                    + " vectors/s while busy, " + reader.waitNanos / 1_000_000 + " ms blocked on full queue\n"
+                    + "\t- Indexers: " + vectors + " vectors, "
+                    + String.format("%.0f", indexBusy == 0 ? 0 : vectors * 1e9 / indexBusy * indexThreads)
+                    + " vectors/s combined while busy, " + indexWait / 1_000_000 / indexThreads
+                    + " ms average blocked on empty queue\n"
+                    + "\t- Overall: " + String.format("%.0f", wallNanos == 0 ? 0 : vectors * 1e9 / wallNanos)
+                    + " vectors/s over " + wallNanos / 1_000_000 + " ms";
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.tlind;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the exact Euclidean top k of every query against a base fvec and writes it as an .ivec, the ground truth
+ * format {@link VectorFileLoader#readIvecs} and {@link RecallEvaluator} read.
+ * <p>
+ * Usage: {@code GroundTruthGenerator <base.fvec> <query.fvec> <groundtruth.ivec>}
+ * <p>
+ * The base file is never loaded as a whole: it is read through the mapping one tile of rows at a time, so it may be
+ * larger than the heap. The base is split into one contiguous range per thread ({@code -DknnThreads}), and each thread
+ * copies a tile of its range into a small buffer and scores every query against it before moving on. The tile stays in
+ * cache while the queries pass over it ({@code -DtileBytes}, default 256 KB), so every base row is read from the
+ * mapping once in total instead of once per query. Each thread keeps a {@link KNN} top-k heap per query; the heaps are
+ * merged at the end. k comes from {@code -DgroundTruthK} (default 100, as in the published datasets).
+ */
+public class GroundTruthGenerator {
+    private static final int k = Integer.getInteger("groundTruthK", 100);
+    private static final int threads = Integer.getInteger("knnThreads", Runtime.getRuntime().availableProcessors());
+    private static final int tileBytes = Integer.getInteger("tileBytes", 256 * 1024);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: GroundTruthGenerator <base.fvec> <query.fvec> <groundtruth.ivec>");
+            System.exit(1);
+        }
+
+        float[][] queries;
+        try (var queryFile = MappedVectorFile.open(args[1])) {
+            queries = new float[queryFile.size()][];
+            for (int q = 0; q < queries.length; q++) {
+                queries[q] = queryFile.readFloats(q);
+            }
+        }
+
+        try (var base = MappedVectorFile.open(args[0])) {
+            System.out.println("Computing the top " + k + " of " + queries.length + " queries over " + base.size()
+                    + " vectors on " + threads + " threads");
+            long start = System.currentTimeMillis();
+            int[][] groundTruth = compute(base, queries, k);
+            System.out.println("\nGround truth computed in " + (System.currentTimeMillis() - start) + " milliseconds");
+
+            writeIvecs(Paths.get(args[2]), groundTruth);
+            System.out.println("Wrote " + groundTruth.length + " rows to " + Paths.get(args[2]).toAbsolutePath());
+        }
+    }
+
+    /** The ordinals of the {@code k} nearest base vectors of every query, nearest first. */
+    public static int[][] compute(MappedVectorFile base, float[][] queries, int k) throws IOException, InterruptedException {
+        for (float[] query : queries) {
+            if (query.length != base.dimension()) {
+                throw new IllegalArgumentException("Queries have " + query.length + " dimensions but the base has " + base.dimension());
+            }
+        }
+        int partitions = Math.max(1, Math.min(threads, base.size()));
+        ProgressBar progressBar = new ProgressBar(base.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+        KNN.TopK[] merged = new KNN.TopK[queries.length];
+        try {
+            List<Future<KNN.TopK[]>> futures = new ArrayList<>(partitions);
+            for (int p = 0; p < partitions; p++) {
+                int start = (int) ((long) base.size() * p / partitions);
+                int end = (int) ((long) base.size() * (p + 1) / partitions);
+                futures.add(executor.submit(() -> scan(base, queries, k, start, end, progressBar)));
+            }
+            for (Future<KNN.TopK[]> future : futures) {
+                KNN.TopK[] partial = future.get();
+                for (int q = 0; q < queries.length; q++) {
+                    if (merged[q] == null) {
+                        merged[q] = partial[q];
+                    } else {
+                        merged[q].addAll(partial[q]);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int[][] groundTruth = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++) {
+            groundTruth[q] = merged[q].sortedOrdinals();
+        }
+        return groundTruth;
+    }
+
+    private static KNN.TopK[] scan(MappedVectorFile base, float[][] queries, int k, int start, int end,
+                                   ProgressBar progressBar) {
+        int dimension = base.dimension();
+        int rowBytes = dimension * Float.BYTES;
+        int tileRows = Math.max(1, tileBytes / rowBytes);
+
+        KNN.TopK[] heaps = new KNN.TopK[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            heaps[q] = new KNN.TopK(k);
+        }
+
+        float[] tile = new float[tileRows * dimension];
+        for (int tileStart = start; tileStart < end; tileStart += tileRows) {
+            int rows = Math.min(tileRows, end - tileStart);
+            for (int row = 0; row < rows; row++) {
+                base.readFloats(tileStart + row, tile, row * dimension);
+            }
+            for (int q = 0; q < queries.length; q++) {
+                float[] query = queries[q];
+                KNN.TopK heap = heaps[q];
+                for (int row = 0, offset = 0; row < rows; row++, offset += dimension) {
+                    heap.insert(tileStart + row, KNN.squareDistance(query, tile, offset));
+                }
+            }
+            progressBar.update(rows);
+        }
+        return heaps;
+    }
+
+    /** Writes each row as a little-endian int32 length followed by its values. */
+    public static void writeIvecs(Path path, int[][] rows) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            for (int[] row : rows) {
+                if (buffer.remaining() < (row.length + 1) * Integer.BYTES) {
+                    flush(channel, buffer);
+                    if (buffer.capacity() < (row.length + 1) * Integer.BYTES) {
+                        buffer = ByteBuffer.allocate((row.length + 1) * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                    }
+                }
+                buffer.putInt(row.length);
+                for (int value : row) {
+                    buffer.putInt(value);
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,134 @@
+package org.tlind;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sweeps the HNSW build parameters and the query-time candidate count, and measures what each setting costs and
+ * returns: build and merge time, index size, and the {@link RecallEvaluator} measures (recall@k against the ivec
+ * ground truth, MRR, QPS and p50/p99 query latency).
+ * <p>
+ * Usage: {@code HnswSweep <base.fvec> <query.fvec> <groundtruth.ivec> [results.csv|results.json]}
+ * <p>
+ * The grid comes from {@code -DsweepMaxConn}, {@code -DsweepBeamWidth} and {@code -DsweepNumCandidates} (comma
+ * separated). Every (maxConn, beamWidth) pair is built once the way {@code BuildIndexLucene} builds, then searched
+ * with every candidate count. Indexes go wherever {@code -Ddirectory} points.
+ */
+public class HnswSweep {
+    private static final String maxConnValues = System.getProperty("sweepMaxConn", "8,16,32");
+    private static final String beamWidthValues = System.getProperty("sweepBeamWidth", "100,200");
+    private static final String numCandidatesValues = System.getProperty("sweepNumCandidates", "10,50,100,200");
+
+    // One document per indexing thread, refilled for every vector and tagged with its ordinal for recall
+    private static final ThreadLocal<ReusableVectorDocument> documents =
+            ThreadLocal.withInitial(() -> new ReusableVectorDocument("title", "vector").withOrdinals(VectorOrdinals.FIELD));
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: HnswSweep <base.fvec> <query.fvec> <groundtruth.ivec> [results.csv|results.json]");
+            System.exit(1);
+        }
+        String outputPath = args.length > 3 ? args[3] : "hnsw_sweep.csv";
+
+        RecallEvaluator evaluator = RecallEvaluator.load(args[1], args[2]);
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (var base = MappedVectorFile.open(args[0])) {
+            for (int maxConn : parseInts(maxConnValues)) {
+                for (int beamWidth : parseInts(beamWidthValues)) {
+                    System.out.println("\nBuilding " + base.size() + " vectors with "
+                            + VectorCodecs.describe(maxConn, beamWidth, VectorCodecs.mergeWorkers()));
+                    try (Directory index = IndexDirectories.open("HnswSweep", "m" + maxConn + "-b" + beamWidth)) {
+                        long[] buildNanos = build(index, base,
+                                VectorCodecs.codec(maxConn, beamWidth, VectorCodecs.mergeWorkers()));
+                        long size = IndexDirectories.sizeInBytes(index);
+
+                        try (DirectoryReader reader = DirectoryReader.open(index)) {
+                            IndexSearcher searcher = new IndexSearcher(reader);
+                            for (int numCandidates : parseInts(numCandidatesValues)) {
+                                Map<String, Object> row = new LinkedHashMap<>();
+                                row.put("maxConn", maxConn);
+                                row.put("beamWidth", beamWidth);
+                                row.put("numCandidates", numCandidates);
+                                row.put("ingestMillis", buildNanos[0] / 1_000_000);
+                                row.put("mergeMillis", buildNanos[1] / 1_000_000);
+                                row.put("buildMillis", (buildNanos[0] + buildNanos[1]) / 1_000_000);
+                                row.put("indexBytes", size);
+                                RecallEvaluator.Result result = evaluator.evaluateFloats(searcher, "vector", numCandidates);
+                                row.put("k", evaluator.k());
+                                row.put("recallAtK", result.getRecall());
+                                row.put("mrr", result.getMrr());
+                                row.put("qps", Math.round(result.getQps()));
+                                row.put("meanMicros", Math.round(result.meanLatencyMillis() * 1000));
+                                row.put("p50Micros", Math.round(result.latencyMillis(0.50) * 1000));
+                                row.put("p99Micros", Math.round(result.latencyMillis(0.99) * 1000));
+                                System.out.println("\t" + row);
+                                rows.add(row);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        write(rows, outputPath);
+        System.out.println("\nWrote " + rows.size() + " results to " + new File(outputPath).getAbsolutePath());
+    }
+
+    /** Builds the index and returns {ingestion nanos, merge nanos}. */
+    private static long[] build(Directory index, MappedVectorFile base, Codec codec) throws IOException, InterruptedException {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setMergePolicy(new LogByteSizeMergePolicy());
+        config.setRAMBufferSizeMB(256.0);
+        config.setCodec(codec);
+
+        try (IndexWriter writer = new IndexWriter(index, IndexDirectories.forBuild(config))) {
+            long start = System.nanoTime();
+            FvecIngestPipeline.configured(base, true)
+                    .withProgressBar(new ProgressBar(base.size()))
+                    .run(() -> block -> writer.addDocuments(
+                            documents.get().floats(block.start(), block.count(), "title", block::vector)));
+            long ingested = System.nanoTime();
+            writer.forceMerge(1);
+            System.out.println();
+            return new long[]{ingested - start, System.nanoTime() - ingested};
+        }
+    }
+
+    private static void write(List<Map<String, Object>> rows, String outputPath) throws IOException {
+        if (outputPath.endsWith(".json")) {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(outputPath), rows);
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(outputPath)) {
+            if (!rows.isEmpty()) {
+                out.println(String.join(",", rows.get(0).keySet()));
+            }
+            for (Map<String, Object> row : rows) {
+                List<String> values = new ArrayList<>();
+                row.values().forEach(value -> values.add(String.valueOf(value)));
+                out.println(String.join(",", values));
+            }
+        }
+    }
+
+    private static int[] parseInts(String values) {
+        return Arrays.stream(values.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+}
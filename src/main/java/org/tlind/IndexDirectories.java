@@ -0,0 +1,93 @@
+package org.tlind;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Chooses where the benchmark programs keep their index.
+ * <p>
+ * {@code -Ddirectory} selects the backend: {@code heap} (the default, a {@link ByteBuffersDirectory} that lives on the
+ * heap and is gone on exit), {@code fs} ({@link FSDirectory#open}, which picks the best implementation for the
+ * platform), {@code niofs} or {@code mmap}. The on-disk backends write to {@code -DindexPath}, or to a per-program
+ * default under {@code indexes/}.
+ * <p>
+ * With {@code -DsearchOnly=true} the programs skip ingestion and reopen the index already at that path, so an index can
+ * be built once and searched repeatedly.
+ */
+public final class IndexDirectories {
+    private static final String type = System.getProperty("directory", "heap").toLowerCase(Locale.ROOT);
+    private static final boolean searchOnly = Boolean.getBoolean("searchOnly");
+
+    private IndexDirectories() {
+    }
+
+    public static boolean searchOnly() {
+        return searchOnly;
+    }
+
+    public static Path indexPath(String defaultName) {
+        return Paths.get(System.getProperty("indexPath", "indexes/" + defaultName));
+    }
+
+    /** Opens the configured directory; {@code defaultName} names the folder used when no index path is given. */
+    public static Directory open(String defaultName) throws IOException {
+        if (searchOnly && "heap".equals(type)) {
+            throw new IllegalArgumentException("searchOnly needs an on-disk index, set -Ddirectory=fs|niofs|mmap");
+        }
+        Directory directory = open(indexPath(defaultName));
+        if (searchOnly && !DirectoryReader.indexExists(directory)) {
+            directory.close();
+            throw new IllegalStateException("No index to search at " + indexPath(defaultName).toAbsolutePath());
+        }
+        return directory;
+    }
+
+    /** Opens a directory of the configured type under the index path, e.g. for one shard of a sharded build. */
+    public static Directory open(String defaultName, String child) throws IOException {
+        return open(indexPath(defaultName).resolve(child));
+    }
+
+    private static Directory open(Path path) throws IOException {
+        switch (type) {
+            case "heap":
+                return new ByteBuffersDirectory();
+            case "fs":
+                return FSDirectory.open(path);
+            case "niofs":
+                return new NIOFSDirectory(path);
+            case "mmap":
+                return new MMapDirectory(path);
+            default:
+                throw new IllegalArgumentException("Unknown directory type '" + type + "', expected heap, fs, niofs or mmap");
+        }
+    }
+
+    /** Applies the open mode for a build: on-disk indexes are rebuilt from scratch rather than appended to. */
+    public static IndexWriterConfig forBuild(IndexWriterConfig config) {
+        return config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    }
+
+    public static String describe(Directory directory, String defaultName) {
+        return "heap".equals(type)
+                ? "heap (" + directory.getClass().getSimpleName() + ")"
+                : type + " (" + directory.getClass().getSimpleName() + " at " + indexPath(defaultName).toAbsolutePath() + ")";
+    }
+
+    public static long sizeInBytes(Directory directory) throws IOException {
+        long size = 0;
+        for (String file : directory.listAll()) {
+            size += directory.fileLength(file);
+        }
+        return size;
+    }
+}
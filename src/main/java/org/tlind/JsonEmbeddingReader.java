@@ -0,0 +1,159 @@
+package org.tlind;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams title/embedding records out of a column-oriented JSON dataset (the layout {@link Data} binds:
+ * {@code {"_id": [...], "url": [...], "title": [...], "text": [...], "emb": [[...], ...]}}) with a Jackson
+ * {@link JsonParser}, one embedding at a time.
+ * <p>
+ * Titles are kept as the only buffered column, since records are paired by position. Embeddings are parsed straight
+ * into a primitive {@code float[]} when the parser reaches them, so nothing proportional to the embedding data lives on
+ * the heap. {@code _id}, {@code url} and {@code text} are skipped without being materialized. If a file happens to
+ * store {@code emb} before {@code title}, the embeddings have to be held as {@code float[]} until the titles arrive.
+ */
+public class JsonEmbeddingReader implements Closeable {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonParser parser;
+    private final List<String> titles = new ArrayList<>();
+    private final ArrayDeque<float[]> pending = new ArrayDeque<>(); // only used when emb precedes title
+    private boolean titlesRead;
+    private boolean inEmbeddings;
+    private boolean finished;
+    private int emitted;
+    private int dimension = -1;
+    private float[] scratch = new float[1024];
+
+    public JsonEmbeddingReader(String jsonFilePath) throws IOException {
+        this.parser = JSON_FACTORY.createParser(new File(jsonFilePath));
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a JSON object with title and emb arrays in " + jsonFilePath);
+        }
+    }
+
+    /** Returns the next record, or {@code null} once every embedding has been read. */
+    public EmbeddingRecord next() throws IOException {
+        while (true) {
+            if (titlesRead && !pending.isEmpty()) {
+                return record(pending.poll());
+            }
+            if (inEmbeddings) {
+                if (parser.nextToken() == JsonToken.END_ARRAY) {
+                    inEmbeddings = false;
+                    continue;
+                }
+                float[] emb = readEmbedding();
+                if (titlesRead) {
+                    return record(emb);
+                }
+                pending.add(emb);
+                continue;
+            }
+            if (finished || !advanceToEmbeddings()) {
+                finished = true;
+                if (!pending.isEmpty()) {
+                    throw new IOException("Found " + pending.size() + " embeddings but no title array");
+                }
+                return null;
+            }
+        }
+    }
+
+    /** Number of records in the file once the title column has been read, otherwise -1. */
+    public int expectedRecords() {
+        return titlesRead ? titles.size() : -1;
+    }
+
+    /**
+     * Skips over the top-level fields, reading titles on the way, until the parser is inside the emb array or the titles
+     * for held embeddings have arrived. Returns false at the end of the object.
+     */
+    private boolean advanceToEmbeddings() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("title".equals(field)) {
+                readTitles();
+                if (!pending.isEmpty()) {
+                    return true;
+                }
+            } else if ("emb".equals(field)) {
+                expect(JsonToken.START_ARRAY, field);
+                inEmbeddings = true;
+                return true;
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (token != JsonToken.END_OBJECT) {
+            throw new IOException("Unexpected " + token + " at " + parser.getCurrentLocation());
+        }
+        return false;
+    }
+
+    private void readTitles() throws IOException {
+        expect(JsonToken.START_ARRAY, "title");
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            titles.add(parser.getValueAsString());
+        }
+        titlesRead = true;
+    }
+
+    private float[] readEmbedding() throws IOException {
+        expect(JsonToken.START_ARRAY, "emb");
+        float[] emb = dimension > 0 ? new float[dimension] : scratch;
+        int count = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (count == emb.length) {
+                if (dimension > 0) {
+                    throw new IOException("Embedding has more than " + dimension + " components at " + parser.getCurrentLocation());
+                }
+                emb = scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+            emb[count++] = parser.getFloatValue();
+        }
+        if (dimension < 0) {
+            // The first embedding fixes the dimension; later ones are allocated at exactly that size
+            dimension = count;
+            scratch = null;
+            return Arrays.copyOf(emb, count);
+        }
+        if (count != dimension) {
+            throw new IOException("Embedding has " + count + " components, expected " + dimension + " at " + parser.getCurrentLocation());
+        }
+        return emb;
+    }
+
+    private EmbeddingRecord record(float[] emb) throws IOException {
+        if (emitted >= titles.size()) {
+            throw new IOException("More embeddings than titles (" + titles.size() + ")");
+        }
+        // Drop the reference so titles that were handed out can be collected along with their batch
+        String title = titles.set(emitted++, null);
+        return new EmbeddingRecord(title, emb);
+    }
+
+    private void expect(JsonToken expected, String field) throws IOException {
+        if (parser.currentToken() != expected) {
+            throw new IOException("Expected " + expected + " for \"" + field + "\" but found " + parser.currentToken()
+                    + " at " + parser.getCurrentLocation());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
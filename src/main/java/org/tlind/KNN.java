@@ -1,85 +1,259 @@
 package org.tlind;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-class Vector {
-    String id;
-    float[] values;
+/**
+ * Exact (brute force) nearest neighbours by Euclidean distance, used as the ground truth for the approximate indexes.
+ * <p>
+ * All vectors live back to back in a single {@code float[]}, so a scan walks memory sequentially and there is no object
+ * per vector. Distances are squared, which ranks the same as the true distance without a square root per candidate,
+ * and are computed with the Vector API ({@code -Dknn.simd=false} falls back to the scalar loop). The k best candidates
+ * are kept in a primitive bounded max-heap, and stores larger than {@code -DknnPartitionSize} vectors (default 16384)
+ * are scanned as partitions on {@code -DknnThreads} threads whose heaps are merged at the end.
+ */
+public class KNN {
+    static final boolean SIMD_ENABLED = Boolean.parseBoolean(System.getProperty("knn.simd", "true"));
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int threads = Integer.getInteger("knnThreads", Runtime.getRuntime().availableProcessors());
+    private static final int partitionSize = Integer.getInteger("knnPartitionSize", 16384);
+    // Largest array the JVM reliably allocates
+    private static final long MAX_VALUES = Integer.MAX_VALUE - 8;
 
-    Vector(String id, float[] values) {
-        this.id = id;
-        this.values = values;
-    }
-}
+    private static ExecutorService scanExecutor;
 
-public class KNN {
-    private List<Vector> vectors;
+    private int dimension = -1;
+    private int size;
+    private float[] values = new float[0];
+    private String[] ids = new String[0];
 
-    public KNN() {
-        this.vectors = new ArrayList<>();
+    public void loadVectors(String filePath) throws IOException {
+        loadVectors(filePath, Integer.MAX_VALUE);
     }
 
-    public void loadVectors(String filePath) throws IOException {
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split("\t");
-                if (parts.length == 3) {
-                    String id = parts[0];
-                    String[] vectorStrs = parts[2].split(",");
-                    float[] vector = new float[vectorStrs.length];
-                    for (int i = 0; i < vectorStrs.length; i++) {
-                        vector[i] = Float.parseFloat(vectorStrs[i]);
-                    }
-                    vectors.add(new Vector(id, vector));
-                }
+    /** Appends at most {@code limit} records of a TSV with the id in column 0 and the embedding in column 2. */
+    public void loadVectors(String filePath, int limit) throws IOException {
+        try (TsvEmbeddingReader reader = new TsvEmbeddingReader(filePath, 0, 2)) {
+            EmbeddingRecord record;
+            for (int i = 0; i < limit && (record = reader.next()) != null; i++) {
+                add(record.getTitle(), record.getEmb());
             }
         }
     }
 
-    public List<Vector> computeKNN(float[] queryVector, int k) {
-        PriorityQueue<VectorDistance> pq = new PriorityQueue<>(k, (a, b) -> Float.compare(b.distance, a.distance));
+    /** Appends a vector and returns its ordinal; the vector is copied. */
+    public int add(String id, float[] vector) {
+        if (dimension < 0) {
+            dimension = vector.length;
+        } else if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected " + dimension + " dimensions but got " + vector.length + " for " + id);
+        }
+        if ((long) (size + 1) * dimension > values.length) {
+            grow();
+        }
+        System.arraycopy(vector, 0, values, size * dimension, dimension);
+        ids[size] = id;
+        return size++;
+    }
+
+    private void grow() {
+        long needed = (long) (size + 1) * dimension;
+        if (needed > MAX_VALUES) {
+            throw new IllegalStateException("KNN store is full at " + size + " vectors of " + dimension + " dimensions");
+        }
+        int capacity = (int) Math.min(MAX_VALUES / dimension, Math.max(size + 1, size + (size >> 1) + 16));
+        values = Arrays.copyOf(values, capacity * dimension);
+        ids = Arrays.copyOf(ids, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public String id(int ordinal) {
+        return ids[ordinal];
+    }
+
+    /** Copies the vector with the given ordinal into {@code dst}. */
+    public float[] vector(int ordinal, float[] dst) {
+        System.arraycopy(values, ordinal * dimension, dst, 0, dimension);
+        return dst;
+    }
+
+    public float[] vector(int ordinal) {
+        return vector(ordinal, new float[dimension]);
+    }
+
+    /** The ordinals of the {@code k} nearest vectors to {@code queryVector}, nearest first. */
+    public int[] computeKNN(float[] queryVector, int k) {
+        return computeKNN(queryVector, k, Math.min(threads, (size + partitionSize - 1) / partitionSize));
+    }
+
+    /** As {@link #computeKNN(float[], int)}, with the store scanned as {@code partitions} ranges whose heaps are merged. */
+    int[] computeKNN(float[] queryVector, int k, int partitions) {
+        if (size > 0 && queryVector.length != dimension) {
+            throw new IllegalArgumentException("Expected a query of " + dimension + " dimensions but got " + queryVector.length);
+        }
+        if (partitions <= 1) {
+            return scan(queryVector, k, 0, size).sortedOrdinals();
+        }
 
-        for (Vector vector : vectors) {
-            float distance = calculateDistance(queryVector, vector.values);
-            if (pq.size() < k) {
-                pq.offer(new VectorDistance(vector, distance));
-            } else if (distance < pq.peek().distance) {
-                pq.poll();
-                pq.offer(new VectorDistance(vector, distance));
+        List<Future<TopK>> futures = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            int start = (int) ((long) size * p / partitions);
+            int end = (int) ((long) size * (p + 1) / partitions);
+            futures.add(scanExecutor().submit(() -> scan(queryVector, k, start, end)));
+        }
+        TopK merged = new TopK(k);
+        try {
+            for (Future<TopK> future : futures) {
+                merged.addAll(future.get());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
+        return merged.sortedOrdinals();
+    }
 
-        List<Vector> knn = new ArrayList<>();
-        while (!pq.isEmpty()) {
-            knn.add(pq.poll().vector);
+    private TopK scan(float[] query, int k, int start, int end) {
+        TopK topK = new TopK(k);
+        int offset = start * dimension;
+        for (int ord = start; ord < end; ord++, offset += dimension) {
+            topK.insert(ord, squareDistance(query, values, offset));
         }
+        return topK;
+    }
 
-        return knn;
+    /** Squared Euclidean distance between {@code query} and the vector starting at {@code values[offset]}. */
+    static float squareDistance(float[] query, float[] values, int offset) {
+        return SIMD_ENABLED ? squareDistanceVectorized(query, values, offset) : squareDistanceScalar(query, values, offset);
     }
 
-    private float calculateDistance(float[] a, float[] b) {
+    static float squareDistanceScalar(float[] query, float[] values, int offset) {
         float sum = 0;
-        for (int i = 0; i < a.length; i++) {
-            float diff = a[i] - b[i];
+        for (int i = 0; i < query.length; i++) {
+            float diff = query[i] - values[offset + i];
             sum += diff * diff;
         }
-        return (float) Math.sqrt(sum);
+        return sum;
     }
 
+    static float squareDistanceVectorized(float[] query, float[] values, int offset) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        int bound = SPECIES.loopBound(query.length);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector diff = FloatVector.fromArray(SPECIES, query, i).sub(FloatVector.fromArray(SPECIES, values, offset + i));
+            sum = diff.fma(diff, sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            float diff = query[i] - values[offset + i];
+            result += diff * diff;
+        }
+        return result;
+    }
 
-    private static class VectorDistance {
-        Vector vector;
-        float distance;
+    private static synchronized ExecutorService scanExecutor() {
+        if (scanExecutor == null) {
+            scanExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "knn-scan");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scanExecutor;
+    }
+
+    /** The k smallest distances seen so far, as a binary max-heap over parallel arrays so the worst is at the root. */
+    static final class TopK {
+        private final int[] ordinals;
+        private final float[] distances;
+        private int size;
+
+        TopK(int k) {
+            ordinals = new int[k];
+            distances = new float[k];
+        }
 
-        VectorDistance(Vector vector, float distance) {
-            this.vector = vector;
-            this.distance = distance;
+        void insert(int ordinal, float distance) {
+            if (size < ordinals.length) {
+                int i = size++;
+                // Sift up
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (distances[parent] >= distance) {
+                        break;
+                    }
+                    ordinals[i] = ordinals[parent];
+                    distances[i] = distances[parent];
+                    i = parent;
+                }
+                ordinals[i] = ordinal;
+                distances[i] = distance;
+            } else if (size > 0 && distance < distances[0]) {
+                replaceRoot(ordinal, distance);
+            }
+        }
+
+        private void replaceRoot(int ordinal, float distance) {
+            int i = 0;
+            // Sift down
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && distances[child + 1] > distances[child]) {
+                    child++;
+                }
+                if (distances[child] <= distance) {
+                    break;
+                }
+                ordinals[i] = ordinals[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            ordinals[i] = ordinal;
+            distances[i] = distance;
+        }
+
+        void addAll(TopK other) {
+            for (int i = 0; i < other.size; i++) {
+                insert(other.ordinals[i], other.distances[i]);
+            }
+        }
+
+        /** Empties the heap, returning its ordinals nearest first. */
+        int[] sortedOrdinals() {
+            int[] sorted = new int[size];
+            while (size > 0) {
+                int last = --size;
+                sorted[last] = ordinals[0];
+                if (last > 0) {
+                    int ordinal = ordinals[last];
+                    float distance = distances[last];
+                    replaceRoot(ordinal, distance);
+                }
+            }
+            return sorted;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,149 @@
+package org.tlind;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latency histogram in nanoseconds with HDR-style log-linear buckets: values below 128 ns get a bucket each, and every
+ * power of two above that is split into 64 buckets, so a reported percentile is within 1/64 (about 1.6%) of the
+ * recorded value from 1 ns up to hundreds of years, in a fixed 30 KB of counters.
+ * <p>
+ * An instance has a single writer and plain counters, so recording costs a few increments and no shared cache lines.
+ * Hot paths give every thread its own histogram and {@link #merge} them once the threads are done.
+ * {@link SharedLatencyHistogram} is the lock-free counterpart for low-rate events recorded from several threads; it is
+ * what {@link LatencyReport} hands out. The maximum and the sum are exact.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 128 exact values below the first shift
+    private static final int HALF = SUB_BUCKETS / 2;
+    static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - SUB_BUCKET_BITS) * HALF;
+
+    private final long[] counts;
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public LatencyHistogram() {
+        this.counts = new long[BUCKETS];
+    }
+
+    /** A histogram over copied counters, see {@link SharedLatencyHistogram#snapshot}. */
+    LatencyHistogram(long[] counts, long count, long totalNanos, long maxNanos) {
+        this.counts = counts;
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /** Records one latency; negative values, from a clock read on another core, count as zero. */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucket(value)]++;
+        count++;
+        totalNanos += value;
+        maxNanos = Math.max(maxNanos, value);
+    }
+
+    /** Records the time since {@code startNanos}, a {@link System#nanoTime} reading, and returns the current time. */
+    public long recordSince(long startNanos) {
+        long now = System.nanoTime();
+        record(now - startNanos);
+        return now;
+    }
+
+    /** Adds the samples of {@code other}, which must no longer be recorded into, to this histogram. */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        totalNanos += other.totalNanos;
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long maxNanos() {
+        return maxNanos;
+    }
+
+    public long totalNanos() {
+        return totalNanos;
+    }
+
+    public double meanNanos() {
+        return count == 0 ? 0 : (double) totalNanos / count;
+    }
+
+    long countAt(int bucket) {
+        return counts[bucket];
+    }
+
+    /** The smallest bucket value with at least {@code quantile} of the samples at or below it, capped by the maximum. */
+    public long valueAtQuantile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    /** Count, mean, p50, p90, p99, p99.9 and max in nanoseconds, in that order, for JSON export. */
+    public Map<String, Object> summary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", count());
+        summary.put("meanNanos", Math.round(meanNanos()));
+        summary.put("p50Nanos", valueAtQuantile(0.50));
+        summary.put("p90Nanos", valueAtQuantile(0.90));
+        summary.put("p99Nanos", valueAtQuantile(0.99));
+        summary.put("p999Nanos", valueAtQuantile(0.999));
+        summary.put("maxNanos", maxNanos());
+        return summary;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d samples, mean %s / p50 %s / p90 %s / p99 %s / p99.9 %s / max %s", count(),
+                format(Math.round(meanNanos())), format(valueAtQuantile(0.50)), format(valueAtQuantile(0.90)),
+                format(valueAtQuantile(0.99)), format(valueAtQuantile(0.999)), format(maxNanos()));
+    }
+
+    /** Nanoseconds with a unit that keeps three significant digits readable. */
+    static String format(long nanos) {
+        if (nanos < 10_000) {
+            return nanos + " ns";
+        }
+        if (nanos < 10_000_000) {
+            return String.format("%.1f us", nanos / 1e3);
+        }
+        return String.format("%.1f ms", nanos / 1e6);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Shift the value down to [64, 128); each shift step is one more group of 64 buckets
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+        long lowest = (long) ((bucket - SUB_BUCKETS) % HALF + HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,79 @@
+package org.tlind;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named {@link SharedLatencyHistogram}s of one run, e.g. parse, quantize, addDocuments, flush, merge and query, kept in the
+ * order they were first used.
+ * <p>
+ * {@link #print} adds a table of the percentiles to the run report and, when {@code -DlatencyJson=<path>} is set, also
+ * writes them as JSON: one object per histogram with the count, mean, p50, p90, p99, p99.9 and max in nanoseconds.
+ */
+public class LatencyReport {
+    private static final String jsonPath = System.getProperty("latencyJson");
+
+    private final Map<String, SharedLatencyHistogram> histograms = new LinkedHashMap<>();
+
+    /**
+     * The shared histogram called {@code name}, created on first use. It suits low-rate events; hot paths record into
+     * a {@link LatencyHistogram} per thread and {@link SharedLatencyHistogram#merge} it into this one when the thread
+     * is done.
+     */
+    public synchronized SharedLatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new SharedLatencyHistogram());
+    }
+
+    /** Runs {@code task} and records its duration under {@code name}. */
+    public <E extends Exception> void time(String name, ThrowingRunnable<E> task) throws E {
+        SharedLatencyHistogram histogram = histogram(name);
+        long start = System.nanoTime();
+        task.run();
+        histogram.recordSince(start);
+    }
+
+    public interface ThrowingRunnable<E extends Exception> {
+        void run() throws E;
+    }
+
+    public synchronized Map<String, Map<String, Object>> summaries() {
+        Map<String, Map<String, Object>> summaries = new LinkedHashMap<>();
+        histograms.forEach((name, histogram) -> summaries.put(name, histogram.snapshot().summary()));
+        return summaries;
+    }
+
+    public void write(String path) throws IOException {
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(path), summaries());
+    }
+
+    /** Prints the table, and writes the JSON when {@code -DlatencyJson} is set. */
+    public void print() {
+        System.out.println("\nLatencies:\n" + this);
+        if (jsonPath != null) {
+            try {
+                write(jsonPath);
+            } catch (IOException e) {
+                throw new RuntimeException("Error writing latencies to " + jsonPath, e);
+            }
+            System.out.println("Wrote latencies to " + new File(jsonPath).getAbsolutePath());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder table = new StringBuilder(String.format("%-14s %9s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        histograms.forEach((name, shared) -> {
+            LatencyHistogram h = shared.snapshot();
+            table.append(String.format("%-14s %9d %10s %10s %10s %10s %10s %10s%n", name, h.count(),
+                    LatencyHistogram.format(Math.round(h.meanNanos())), LatencyHistogram.format(h.valueAtQuantile(0.50)),
+                    LatencyHistogram.format(h.valueAtQuantile(0.90)), LatencyHistogram.format(h.valueAtQuantile(0.99)),
+                    LatencyHistogram.format(h.valueAtQuantile(0.999)), LatencyHistogram.format(h.maxNanos())));
+        });
+        return table.toString();
+    }
+}
@@ -0,0 +1,240 @@
+package org.tlind;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped view over an .fvec or .ivec file.
+ * <p>
+ * Each record is a little-endian int32 dimension followed by that many 4-byte components. The file is mapped in
+ * chunks of at most 2 GB that always start on a record boundary, so a record never straddles two mappings and can be
+ * exposed as an offset into a shared buffer without copying. By default every record is assumed to have the dimension
+ * of the first one (the case for every dataset we use), which makes record offsets computable; pass
+ * {@code indexOffsets = true} to scan the headers once and keep an explicit offset index instead.
+ * <p>
+ * All read methods use absolute positioning only, so a single instance can be shared between threads.
+ */
+public class MappedVectorFile implements Closeable {
+    private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int size;
+    private final int dimension;
+    private final long recordBytes; // fixed stride, or -1 when an offset index is used
+    private final long[] offsets; // byte offset of each record header, null for fixed stride
+
+    private final long[] chunkStarts;
+    private final ByteBuffer[] chunks;
+    private final FloatBuffer[] floatChunks;
+    private final IntBuffer[] intChunks;
+
+    private MappedVectorFile(Path path, FileChannel channel, int size, int dimension, long recordBytes, long[] offsets,
+                             long[] chunkStarts, ByteBuffer[] chunks) {
+        this.path = path;
+        this.channel = channel;
+        this.size = size;
+        this.dimension = dimension;
+        this.recordBytes = recordBytes;
+        this.offsets = offsets;
+        this.chunkStarts = chunkStarts;
+        this.chunks = chunks;
+        this.floatChunks = new FloatBuffer[chunks.length];
+        this.intChunks = new IntBuffer[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            floatChunks[i] = chunks[i].asFloatBuffer();
+            intChunks[i] = chunks[i].asIntBuffer();
+        }
+    }
+
+    public static MappedVectorFile open(String filePath) throws IOException {
+        return open(filePath, false);
+    }
+
+    public static MappedVectorFile open(String filePath, boolean indexOffsets) throws IOException {
+        Path path = Paths.get(filePath);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize == 0) {
+                return new MappedVectorFile(path, channel, 0, 0, 0, null, new long[0], new ByteBuffer[0]);
+            }
+            int dimension = readHeader(channel, 0);
+            if (!indexOffsets) {
+                long recordBytes = Integer.BYTES + (long) dimension * Float.BYTES;
+                if (fileSize % recordBytes != 0) {
+                    throw new IOException(path + " is not a fixed-dimension vector file (size " + fileSize
+                            + " is not a multiple of " + recordBytes + " bytes); open it with an offset index");
+                }
+                long count = fileSize / recordBytes;
+                if (count > Integer.MAX_VALUE) {
+                    throw new IOException(path + " has too many records: " + count);
+                }
+                long recordsPerChunk = MAX_CHUNK_BYTES / recordBytes;
+                var starts = new ArrayList<Long>();
+                for (long start = 0; start < fileSize; start += recordsPerChunk * recordBytes) {
+                    starts.add(start);
+                }
+                return map(path, channel, (int) count, dimension, recordBytes, null, starts, fileSize);
+            }
+
+            // Variable (or unverified) dimensions: walk the headers once and remember where each record starts.
+            long[] offsets = new long[1024];
+            int count = 0;
+            long position = 0;
+            var starts = new ArrayList<Long>();
+            starts.add(0L);
+            while (position < fileSize) {
+                int recordDimension = readHeader(channel, position);
+                long next = position + Integer.BYTES + (long) recordDimension * Float.BYTES;
+                if (next > fileSize) {
+                    throw new IOException(path + " is truncated at record " + count);
+                }
+                if (next - starts.get(starts.size() - 1) > MAX_CHUNK_BYTES) {
+                    starts.add(position);
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = position;
+                position = next;
+            }
+            return map(path, channel, count, dimension, -1, Arrays.copyOf(offsets, count), starts, fileSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static MappedVectorFile map(Path path, FileChannel channel, int size, int dimension, long recordBytes,
+                                        long[] offsets, ArrayList<Long> starts, long fileSize) throws IOException {
+        long[] chunkStarts = new long[starts.size()];
+        ByteBuffer[] chunks = new ByteBuffer[starts.size()];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = starts.get(i);
+            long end = i + 1 < chunks.length ? starts.get(i + 1) : fileSize;
+            chunkStarts[i] = start;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new MappedVectorFile(path, channel, size, dimension, recordBytes, offsets, chunkStarts, chunks);
+    }
+
+    private static int readHeader(FileChannel channel, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) < 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+        }
+        int dimension = header.getInt(0);
+        if (dimension <= 0) {
+            throw new IOException("Invalid vector dimension " + dimension + " at offset " + position);
+        }
+        return dimension;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /** Number of records in the file. */
+    public int size() {
+        return size;
+    }
+
+    /** Dimension of the first record (of every record unless the file was opened with an offset index). */
+    public int dimension() {
+        return dimension;
+    }
+
+    public int dimension(int ord) {
+        return offsets == null ? dimension : buffer(ord).getInt(headerPosition(ord));
+    }
+
+    /** Byte offset of the record header within the file; the components start {@link Integer#BYTES} later. */
+    public long recordOffset(int ord) {
+        if (ord < 0 || ord >= size) {
+            throw new IndexOutOfBoundsException("ord " + ord + " out of bounds for " + size + " vectors");
+        }
+        return offsets == null ? ord * recordBytes : offsets[ord];
+    }
+
+    /**
+     * The little-endian mapped buffer holding record {@code ord}. Use {@link #position(int)} to locate the first
+     * component. The buffer is shared: only absolute reads are allowed.
+     */
+    public ByteBuffer buffer(int ord) {
+        return chunks[chunk(recordOffset(ord))];
+    }
+
+    /** Byte position of the first component of record {@code ord} within {@link #buffer(int)}. */
+    public int position(int ord) {
+        return headerPosition(ord) + Integer.BYTES;
+    }
+
+    /** Copies record {@code ord} into {@code dst} (which must hold at least {@link #dimension(int)} values). */
+    public float[] readFloats(int ord, float[] dst) {
+        long offset = recordOffset(ord);
+        int chunk = chunk(offset);
+        int position = (int) (offset - chunkStarts[chunk]) + Integer.BYTES;
+        floatChunks[chunk].get(position / Float.BYTES, dst, 0, dimension(ord));
+        return dst;
+    }
+
+    /** Copies record {@code ord} into {@code dst} starting at {@code dstOffset}, e.g. to fill a row of a tile. */
+    public void readFloats(int ord, float[] dst, int dstOffset) {
+        long offset = recordOffset(ord);
+        int chunk = chunk(offset);
+        int position = (int) (offset - chunkStarts[chunk]) + Integer.BYTES;
+        floatChunks[chunk].get(position / Float.BYTES, dst, dstOffset, dimension(ord));
+    }
+
+    public float[] readFloats(int ord) {
+        return readFloats(ord, new float[dimension(ord)]);
+    }
+
+    public int[] readInts(int ord, int[] dst) {
+        long offset = recordOffset(ord);
+        int chunk = chunk(offset);
+        int position = (int) (offset - chunkStarts[chunk]) + Integer.BYTES;
+        intChunks[chunk].get(position / Integer.BYTES, dst, 0, dimension(ord));
+        return dst;
+    }
+
+    public int[] readInts(int ord) {
+        return readInts(ord, new int[dimension(ord)]);
+    }
+
+    /** Component {@code i} of record {@code ord}, read straight from the mapping. */
+    public float getFloat(int ord, int i) {
+        return buffer(ord).getFloat(position(ord) + i * Float.BYTES);
+    }
+
+    private int headerPosition(int ord) {
+        long offset = recordOffset(ord);
+        return (int) (offset - chunkStarts[chunk(offset)]);
+    }
+
+    private int chunk(long offset) {
+        if (chunkStarts.length == 1) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(chunkStarts, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
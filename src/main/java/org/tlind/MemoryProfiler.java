@@ -0,0 +1,241 @@
+package org.tlind;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Memory profile of a run, split into named phases (parse, index, merge, search).
+ * <p>
+ * Instead of polling the heap, which misses short peaks and counts garbage that is about to be collected, the profiler
+ * listens for the notification every {@link GarbageCollectorMXBean} sends after a collection. The heap still in use
+ * after a collection is what survived it, so the largest such value in a phase is that phase's live-set peak; young
+ * collections leave old garbage in place, so it is an upper bound until a full or mixed collection runs. Each
+ * notification also carries the collection's duration, summed per phase as GC pause time. Collectors whose name says
+ * they are concurrent (G1's concurrent cycle, ZGC and Shenandoah cycles) run next to the application, so their time is
+ * counted separately and not as pause.
+ * <p>
+ * Direct and mapped {@link BufferPoolMXBean} usage is off heap and not seen by the collectors, so it is sampled on every
+ * collection and at phase boundaries. A phase without any collection has no live-set figure rather than a guess.
+ * <p>
+ * Usage: {@code MemoryProfiler.start("index")}, then {@link #phase} at every boundary, {@link #close} at the end and
+ * {@link #report} into the run report. Notifications arrive on a JMX thread, so all state is guarded by the instance.
+ */
+public class MemoryProfiler implements AutoCloseable {
+    /** Figures of one phase; sizes are in bytes, times in milliseconds. */
+    public static final class Phase {
+        private final String name;
+        private final long startNanos;
+        private long wallMillis;
+        private int collections;
+        private long pauseMillis;
+        private long concurrentMillis;
+        private long peakLiveBytes = -1;
+        private long peakDirectBytes;
+        private long peakMappedBytes;
+
+        private Phase(String name) {
+            this.name = name;
+            this.startNanos = System.nanoTime();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWallMillis() {
+            return wallMillis;
+        }
+
+        public int getCollections() {
+            return collections;
+        }
+
+        public long getPauseMillis() {
+            return pauseMillis;
+        }
+
+        public long getConcurrentMillis() {
+            return concurrentMillis;
+        }
+
+        /** Largest heap in use right after a collection, or -1 when no collection ran during the phase. */
+        public long getPeakLiveBytes() {
+            return peakLiveBytes;
+        }
+
+        public long getPeakDirectBytes() {
+            return peakDirectBytes;
+        }
+
+        public long getPeakMappedBytes() {
+            return peakMappedBytes;
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<>();
+    private final Set<String> heapPools;
+    private final List<BufferPoolMXBean> bufferPools;
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final NotificationListener listener = this::handleNotification;
+    private Phase current;
+
+    private MemoryProfiler(String firstPhase) {
+        heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .map(MemoryPoolMXBean::getName)
+                .collect(Collectors.toSet());
+        bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+        current = new Phase(firstPhase);
+        sampleBufferPools(current);
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(listener, null, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    /** Starts listening, with {@code phase} as the first phase. */
+    public static MemoryProfiler start(String phase) {
+        return new MemoryProfiler(phase);
+    }
+
+    /** Ends the current phase and starts {@code name}. */
+    public synchronized void phase(String name) {
+        endCurrent();
+        current = new Phase(name);
+        sampleBufferPools(current);
+    }
+
+    /** Ends the current phase and stops listening; the figures stay available. */
+    @Override
+    public void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                // Already removed
+            }
+        }
+        emitters.clear();
+        synchronized (this) {
+            endCurrent();
+        }
+    }
+
+    public synchronized List<Phase> phases() {
+        return Collections.unmodifiableList(new ArrayList<>(phases));
+    }
+
+    /** The ended phase called {@code name}, or null. */
+    public synchronized Phase getPhase(String name) {
+        for (Phase phase : phases) {
+            if (phase.name.equals(name)) {
+                return phase;
+            }
+        }
+        return null;
+    }
+
+    /** Largest live-set peak over all ended phases, or -1 when no collection ran at all. */
+    public synchronized long peakLiveBytes() {
+        return phases.stream().mapToLong(Phase::getPeakLiveBytes).max().orElse(-1);
+    }
+
+    /** One line per ended phase plus a total, for the run report. */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder(String.format("%-10s %10s %6s %11s %16s %10s %12s %12s%n",
+                "phase", "time (ms)", "GCs", "pause (ms)", "concurrent (ms)", "live (MB)", "direct (MB)", "mapped (MB)"));
+        long totalMillis = 0, totalPause = 0, totalConcurrent = 0;
+        int totalCollections = 0;
+        long direct = 0, mapped = 0;
+        for (Phase phase : phases) {
+            report.append(line(phase.name, phase.wallMillis, phase.collections, phase.pauseMillis, phase.concurrentMillis,
+                    phase.peakLiveBytes, phase.peakDirectBytes, phase.peakMappedBytes));
+            totalMillis += phase.wallMillis;
+            totalCollections += phase.collections;
+            totalPause += phase.pauseMillis;
+            totalConcurrent += phase.concurrentMillis;
+            direct = Math.max(direct, phase.peakDirectBytes);
+            mapped = Math.max(mapped, phase.peakMappedBytes);
+        }
+        report.append(line("total", totalMillis, totalCollections, totalPause, totalConcurrent, peakLiveBytes(), direct, mapped));
+        return report.toString();
+    }
+
+    private static String line(String name, long millis, int collections, long pause, long concurrent, long live,
+                               long direct, long mapped) {
+        return String.format("%-10s %10d %6d %11d %16d %10s %12.1f %12.1f%n", name, millis, collections, pause, concurrent,
+                live < 0 ? "-" : String.format("%.1f", live / (1024.0 * 1024)),
+                direct / (1024.0 * 1024), mapped / (1024.0 * 1024));
+    }
+
+    private void endCurrent() {
+        if (current == null) {
+            return;
+        }
+        sampleBufferPools(current);
+        current.wallMillis = (System.nanoTime() - current.startNanos) / 1_000_000;
+        phases.add(current);
+        current = null;
+    }
+
+    private void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        GcInfo gc = info.getGcInfo();
+        long live = 0;
+        for (var pool : gc.getMemoryUsageAfterGc().entrySet()) {
+            if (heapPools.contains(pool.getKey())) {
+                MemoryUsage usage = pool.getValue();
+                live += usage.getUsed();
+            }
+        }
+        boolean concurrent = info.getGcName().contains("Concurrent") || info.getGcName().contains("Cycles");
+
+        synchronized (this) {
+            if (current == null) {
+                return;
+            }
+            current.collections++;
+            if (concurrent) {
+                current.concurrentMillis += gc.getDuration();
+            } else {
+                current.pauseMillis += gc.getDuration();
+            }
+            current.peakLiveBytes = Math.max(current.peakLiveBytes, live);
+            sampleBufferPools(current);
+        }
+    }
+
+    private void sampleBufferPools(Phase phase) {
+        for (BufferPoolMXBean pool : bufferPools) {
+            if (pool.getName().equals("direct")) {
+                phase.peakDirectBytes = Math.max(phase.peakDirectBytes, pool.getMemoryUsed());
+            } else if (pool.getName().equals("mapped")) {
+                phase.peakMappedBytes = Math.max(phase.peakMappedBytes, pool.getMemoryUsed());
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.tlind;
+
+import java.util.stream.IntStream;
+
+/**
+ * The {@link ProductQuantizer} codes of a whole fvec, back to back in one {@code byte[]} and addressed by source
+ * ordinal.
+ * <p>
+ * Used two ways:
+ * <ul>
+ *     <li>on its own, as a compressed exhaustive search: {@link #candidates} scans every code with the query's ADC table,
+ *     and {@link #search} rescores the best {@code k * overFetch} with their float vectors</li>
+ *     <li>as a {@link RerankingSearcher.Rescorer} behind a Lucene HNSW index, reordering the graph's candidates by their
+ *     ADC distance without touching the float vectors at all</li>
+ * </ul>
+ * ADC distances only approximate the true ones, so the standalone search over-fetches by {@code -DpqOverFetch}
+ * (default 10). Hits are source ordinals.
+ */
+public class ProductQuantizedIndex implements RerankingSearcher.Rescorer {
+    private static final int defaultOverFetch = Integer.getInteger("pqOverFetch", 10);
+    private static final int RECORDS_PER_TASK = 4096;
+
+    private final ProductQuantizer quantizer;
+    private final int size;
+    private final int codeBytes;
+    private final byte[] codes;
+
+    private ProductQuantizedIndex(ProductQuantizer quantizer, int size, byte[] codes) {
+        this.quantizer = quantizer;
+        this.size = size;
+        this.codeBytes = quantizer.codeBytes();
+        this.codes = codes;
+    }
+
+    /** Encodes every record of {@code file} on the common fork-join pool. */
+    public static ProductQuantizedIndex build(MappedVectorFile file, ProductQuantizer quantizer) {
+        if (file.dimension() != quantizer.dimension()) {
+            throw new IllegalArgumentException("Quantizer has " + quantizer.dimension() + " dimensions but the file has " + file.dimension());
+        }
+        int codeBytes = quantizer.codeBytes();
+        if ((long) file.size() * codeBytes > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(file.size() + " codes of " + codeBytes + " bytes do not fit in one array");
+        }
+        byte[] codes = new byte[file.size() * codeBytes];
+        int tasks = (file.size() + RECORDS_PER_TASK - 1) / RECORDS_PER_TASK;
+        IntStream.range(0, tasks).parallel().forEach(task -> {
+            float[] vector = new float[file.dimension()];
+            int end = Math.min(file.size(), (task + 1) * RECORDS_PER_TASK);
+            for (int ord = task * RECORDS_PER_TASK; ord < end; ord++) {
+                quantizer.encode(file.readFloats(ord, vector), codes, ord * codeBytes);
+            }
+        });
+        return new ProductQuantizedIndex(quantizer, file.size(), codes);
+    }
+
+    public static int defaultOverFetch() {
+        return defaultOverFetch;
+    }
+
+    public ProductQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Bytes held by the codes. */
+    public long sizeInBytes() {
+        return codes.length;
+    }
+
+    /** The {@code count} records with the smallest ADC distance to {@code query}, nearest first. */
+    public int[] candidates(float[] query, int count) {
+        float[] table = quantizer.distanceTable(query);
+        KNN.TopK topK = new KNN.TopK(Math.min(count, size));
+        for (int ord = 0, offset = 0; ord < size; ord++, offset += codeBytes) {
+            topK.insert(ord, quantizer.distance(table, codes, offset));
+        }
+        return topK.sortedOrdinals();
+    }
+
+    /** The {@code k} nearest records by exact Euclidean distance among the {@code k * overFetch} ADC candidates. */
+    public int[] search(float[] query, int k, int overFetch, RerankingSearcher.FloatVectors vectors) {
+        return RerankingSearcher.rescore(candidates(query, k * overFetch), k, vectors.forQuery(query));
+    }
+
+    @Override
+    public RerankingSearcher.Distances forQuery(float[] query) {
+        float[] table = quantizer.distanceTable(query);
+        return ordinal -> quantizer.distance(table, codes, ordinal * codeBytes);
+    }
+}
@@ -0,0 +1,223 @@
+package org.tlind;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Product quantizer: the dimensions are split into {@code M} contiguous sub-spaces, each with its own codebook of
+ * {@code 2^bits} centroids trained by k-means, and a vector is stored as the index of the nearest centroid in every
+ * sub-space. With {@code M = 64} and 8 bits a 1024-dimensional vector takes 64 bytes, against 4096 as floats and 1024
+ * as int8; codes narrower than 8 bits are bit-packed.
+ * <p>
+ * Queries are not quantized. {@link #distanceTable} computes the squared distance from each query sub-vector to every
+ * centroid once per query, after which the asymmetric distance (ADC) to any code is {@code M} table lookups
+ * ({@link #distance}).
+ * <p>
+ * Training ({@link #train}) runs Lloyd's k-means on a sample spread over the file, all sub-spaces in parallel. The
+ * sample size and iteration count default to {@code -DpqSampleSize} (10000) and {@code -DpqIterations} (10).
+ */
+public class ProductQuantizer {
+    private static final int defaultSampleSize = Integer.getInteger("pqSampleSize", 10_000);
+    private static final int defaultIterations = Integer.getInteger("pqIterations", 10);
+
+    private final int dimension;
+    private final int bits;
+    private final int centroidCount;
+    private final int[] offsets; // first dimension of each sub-space, plus the dimension at the end
+    private final float[][] centroids; // per sub-space, centroidCount rows of that sub-space's width
+    private final int codeBytes;
+
+    public ProductQuantizer(int dimension, int bits, int[] offsets, float[][] centroids) {
+        if (bits < 1 || bits > 8) {
+            throw new IllegalArgumentException("bits must be between 1 and 8, got " + bits);
+        }
+        this.dimension = dimension;
+        this.bits = bits;
+        this.centroidCount = 1 << bits;
+        this.offsets = offsets;
+        this.centroids = centroids;
+        this.codeBytes = (subspaces() * bits + Byte.SIZE - 1) / Byte.SIZE;
+    }
+
+    public static ProductQuantizer train(MappedVectorFile file, int subspaces, int bits) {
+        return train(file, subspaces, bits, defaultSampleSize, defaultIterations, 42);
+    }
+
+    public static ProductQuantizer train(MappedVectorFile file, int subspaces, int bits, int sampleSize, int iterations,
+                                         long seed) {
+        int dimension = file.dimension();
+        if (subspaces < 1 || subspaces > dimension) {
+            throw new IllegalArgumentException("Sub-space count must be between 1 and " + dimension + ", got " + subspaces);
+        }
+        int count = Math.min(sampleSize, file.size());
+        if (count < (1 << bits)) {
+            throw new IllegalArgumentException("Need at least " + (1 << bits) + " vectors to train " + bits + "-bit codebooks, got " + count);
+        }
+        float[][] sample = new float[count][];
+        for (int i = 0; i < count; i++) {
+            sample[i] = file.readFloats((int) ((long) i * file.size() / count));
+        }
+
+        // Spread the remainder over the first sub-spaces, so widths differ by at most one dimension
+        int[] offsets = new int[subspaces + 1];
+        for (int m = 0; m < subspaces; m++) {
+            offsets[m + 1] = offsets[m] + dimension / subspaces + (m < dimension % subspaces ? 1 : 0);
+        }
+
+        float[][] centroids = new float[subspaces][];
+        IntStream.range(0, subspaces).parallel().forEach(m ->
+                centroids[m] = kMeans(sample, offsets[m], offsets[m + 1] - offsets[m], 1 << bits, iterations, new Random(seed + m)));
+        return new ProductQuantizer(dimension, bits, offsets, centroids);
+    }
+
+    private static float[] kMeans(float[][] sample, int offset, int width, int k, int iterations, Random random) {
+        float[] centroids = new float[k * width];
+        // Start from k distinct sample points
+        int[] order = IntStream.range(0, sample.length).toArray();
+        for (int c = 0; c < k; c++) {
+            int pick = c + random.nextInt(sample.length - c);
+            int swap = order[c];
+            order[c] = order[pick];
+            order[pick] = swap;
+            System.arraycopy(sample[order[c]], offset, centroids, c * width, width);
+        }
+
+        int[] assignment = new int[sample.length];
+        double[] sums = new double[k * width];
+        int[] counts = new int[k];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            boolean changed = iteration == 0;
+            for (int i = 0; i < sample.length; i++) {
+                int nearest = nearest(sample[i], offset, centroids, width, k);
+                if (nearest != assignment[i]) {
+                    assignment[i] = nearest;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < sample.length; i++) {
+                int c = assignment[i];
+                counts[c]++;
+                for (int d = 0; d < width; d++) {
+                    sums[c * width + d] += sample[i][offset + d];
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    // Reseed an empty cluster with a random sample point
+                    System.arraycopy(sample[random.nextInt(sample.length)], offset, centroids, c * width, width);
+                    continue;
+                }
+                for (int d = 0; d < width; d++) {
+                    centroids[c * width + d] = (float) (sums[c * width + d] / counts[c]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    private static int nearest(float[] vector, int offset, float[] centroids, int width, int k) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0, base = 0; c < k; c++, base += width) {
+            float distance = 0;
+            for (int d = 0; d < width; d++) {
+                float diff = vector[offset + d] - centroids[base + d];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public int subspaces() {
+        return offsets.length - 1;
+    }
+
+    public int bits() {
+        return bits;
+    }
+
+    /** Bytes per encoded vector. */
+    public int codeBytes() {
+        return codeBytes;
+    }
+
+    /** Writes the code of {@code vector} into {@code dst[offset, offset + codeBytes())}. */
+    public void encode(float[] vector, byte[] dst, int offset) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected " + dimension + " dimensions but got " + vector.length);
+        }
+        Arrays.fill(dst, offset, offset + codeBytes, (byte) 0);
+        for (int m = 0; m < subspaces(); m++) {
+            int code = nearest(vector, offsets[m], centroids[m], offsets[m + 1] - offsets[m], centroidCount);
+            if (bits == Byte.SIZE) {
+                dst[offset + m] = (byte) code;
+                continue;
+            }
+            int bit = m * bits;
+            int index = offset + (bit >>> 3);
+            int shift = bit & 7;
+            dst[index] |= (byte) (code << shift);
+            if (shift + bits > Byte.SIZE) {
+                dst[index + 1] |= (byte) (code >>> (Byte.SIZE - shift));
+            }
+        }
+    }
+
+    /** Squared distances from each sub-vector of {@code query} to every centroid of its sub-space, {@code M * 2^bits} entries. */
+    public float[] distanceTable(float[] query) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException("Expected " + dimension + " dimensions but got " + query.length);
+        }
+        float[] table = new float[subspaces() * centroidCount];
+        for (int m = 0; m < subspaces(); m++) {
+            int width = offsets[m + 1] - offsets[m];
+            for (int c = 0; c < centroidCount; c++) {
+                float distance = 0;
+                for (int d = 0; d < width; d++) {
+                    float diff = query[offsets[m] + d] - centroids[m][c * width + d];
+                    distance += diff * diff;
+                }
+                table[m * centroidCount + c] = distance;
+            }
+        }
+        return table;
+    }
+
+    /** Asymmetric squared distance between the query of {@code table} and the code at {@code codes[offset]}. */
+    public float distance(float[] table, byte[] codes, int offset) {
+        float distance = 0;
+        if (bits == Byte.SIZE) {
+            for (int m = 0, base = 0; m < codeBytes; m++, base += centroidCount) {
+                distance += table[base + (codes[offset + m] & 0xFF)];
+            }
+            return distance;
+        }
+        int mask = centroidCount - 1;
+        for (int m = 0, base = 0; m < subspaces(); m++, base += centroidCount) {
+            int bit = m * bits;
+            int index = offset + (bit >>> 3);
+            int shift = bit & 7;
+            int value = (codes[index] & 0xFF) >>> shift;
+            if (shift + bits > Byte.SIZE) {
+                value |= (codes[index + 1] & 0xFF) << (Byte.SIZE - shift);
+            }
+            distance += table[base + (value & mask)];
+        }
+        return distance;
+    }
+}
@@ -14,6 +14,11 @@ public class ProgressBar {
         printProgress();
     }
 
+    public synchronized void update(int steps) {
+        progress += steps;
+        printProgress();
+    }
+
     private void printProgress() {
         int barLength = 50;
         int completedLength = (int) (((double) progress / total) * barLength);
@@ -0,0 +1,213 @@
+package org.tlind;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnByteVectorQuery;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Runs the queries of an fvec file against an index and scores the hits against ivec ground truth.
+ * <p>
+ * Hits are mapped back to source ordinals through {@link VectorOrdinals}, so the index has to be built with
+ * {@link ReusableVectorDocument#withOrdinals}. Reported per run:
+ * <ul>
+ *     <li>recall@k: the fraction of each query's k true nearest neighbours found in its top k hits</li>
+ *     <li>MRR: the mean of 1 / rank of the true nearest neighbour among the hits, 0 when it is missing</li>
+ *     <li>QPS and latency percentiles of single-threaded search, after a warm-up</li>
+ * </ul>
+ * {@code k}, the candidate count and the number of queries default to {@code -Dk} (10), {@code -DnumCandidates} (100)
+ * and {@code -DmaxQueries} (all).
+ */
+public class RecallEvaluator {
+    private static final int defaultK = Integer.getInteger("k", 10);
+    private static final int defaultNumCandidates = Integer.getInteger("numCandidates", 100);
+    private static final int maxQueries = Integer.getInteger("maxQueries", Integer.MAX_VALUE);
+    private static final int warmupQueries = Integer.getInteger("warmupQueries", 100);
+
+    private final float[][] queries;
+    private final int[][] groundTruth;
+    private final int k;
+
+    public RecallEvaluator(float[][] queries, int[][] groundTruth, int k) {
+        checkGroundTruth(queries.length, groundTruth);
+        this.queries = queries;
+        this.groundTruth = groundTruth;
+        this.k = k;
+    }
+
+    public static RecallEvaluator load(String queryPath, String groundTruthPath) throws IOException {
+        float[][] queries;
+        try (var queryFile = MappedVectorFile.open(queryPath)) {
+            queries = new float[Math.min(maxQueries, queryFile.size())][];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = queryFile.readFloats(i);
+            }
+        }
+        return new RecallEvaluator(queries, VectorFileLoader.readIvecs(groundTruthPath), defaultK);
+    }
+
+    public static int defaultNumCandidates() {
+        return defaultNumCandidates;
+    }
+
+    /** Queries run untimed before measuring, from {@code -DwarmupQueries} (100). */
+    public static int warmupQueries() {
+        return warmupQueries;
+    }
+
+    /** Fails unless {@code groundTruth} has a row for each of the {@code queries}. */
+    static void checkGroundTruth(int queries, int[][] groundTruth) {
+        if (groundTruth.length < queries) {
+            throw new IllegalArgumentException("Ground truth has " + groundTruth.length + " rows for " + queries + " queries");
+        }
+    }
+
+    public int k() {
+        return k;
+    }
+
+    public float[][] queries() {
+        return queries;
+    }
+
+    public Result evaluateFloats(IndexSearcher searcher, String field, int numCandidates) throws IOException {
+        return evaluate(searcher, query -> new KnnFloatVectorQuery(field, query, Math.max(k, numCandidates)));
+    }
+
+    /** For indexes of {@link ScalarQuantizer} bytes: every query is quantized the way the documents were. */
+    public Result evaluateBytes(IndexSearcher searcher, String field, ScalarQuantizer quantizer, int numCandidates)
+            throws IOException {
+        return evaluate(searcher, query -> new KnnByteVectorQuery(field, quantizer.quantize(query), Math.max(k, numCandidates)));
+    }
+
+    /** For indexes of {@link ScalarQuantizer} bytes searched in two phases; the rerank is part of the timed search. */
+    public Result evaluateReranked(RerankingSearcher searcher, int numCandidates) throws IOException {
+        return evaluate(searcher.getSearcher().getIndexReader(), query -> searcher.search(query, k, numCandidates));
+    }
+
+    public Result evaluate(IndexSearcher searcher, Function<float[], Query> queryFactory) throws IOException {
+        return evaluate(searcher.getIndexReader(), query -> searcher.search(queryFactory.apply(query), k));
+    }
+
+    /** Scores any search that returns the top k hits of {@code reader} for a query vector. */
+    public Result evaluate(IndexReader reader, Search search) throws IOException {
+        return run(search::search, topDocs -> VectorOrdinals.of(reader, topDocs.scoreDocs));
+    }
+
+    /** Scores a search outside Lucene that returns source ordinals directly, nearest first. */
+    public Result evaluateOrdinals(OrdinalSearch search) throws IOException {
+        return run(search::search, ordinals -> ordinals);
+    }
+
+    private <T> Result run(Step<float[], T> search, Step<T, int[]> toOrdinals) throws IOException {
+        // Warm up before timing so the first queries do not pay for loading the graph
+        for (int q = 0; q < Math.min(warmupQueries, queries.length); q++) {
+            search.apply(queries[q]);
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        long found = 0;
+        long expected = 0;
+        double reciprocalRanks = 0;
+        for (int q = 0; q < queries.length; q++) {
+            long start = System.nanoTime();
+            T hits = search.apply(queries[q]);
+            latencies.recordSince(start);
+
+            // Scoring happens outside the timed section
+            int[] ordinals = toOrdinals.apply(hits);
+            int[] truth = groundTruth[q];
+            found += matches(ordinals, truth, k);
+            expected += Math.min(k, truth.length);
+            for (int rank = 0; rank < ordinals.length; rank++) {
+                if (ordinals[rank] == truth[0]) {
+                    reciprocalRanks += 1.0 / (rank + 1);
+                    break;
+                }
+            }
+        }
+        return new Result(queries.length, k, expected == 0 ? 0 : (double) found / expected,
+                queries.length == 0 ? 0 : reciprocalRanks / queries.length, latencies);
+    }
+
+    /** How many of {@code ordinals} are among the first {@code k} entries of {@code truth}. */
+    static int matches(int[] ordinals, int[] truth, int k) {
+        int truthK = Math.min(k, truth.length);
+        int found = 0;
+        for (int ordinal : ordinals) {
+            for (int t = 0; t < truthK; t++) {
+                if (truth[t] == ordinal) {
+                    found++;
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    public interface Search {
+        TopDocs search(float[] query) throws IOException;
+    }
+
+    public interface OrdinalSearch {
+        int[] search(float[] query) throws IOException;
+    }
+
+    private interface Step<A, B> {
+        B apply(A input) throws IOException;
+    }
+
+    public static class Result {
+        private final int queries;
+        private final int k;
+        private final double recall;
+        private final double mrr;
+        private final LatencyHistogram latencies;
+
+        Result(int queries, int k, double recall, double mrr, LatencyHistogram latencies) {
+            this.queries = queries;
+            this.k = k;
+            this.recall = recall;
+            this.mrr = mrr;
+            this.latencies = latencies;
+        }
+
+        public double getRecall() {
+            return recall;
+        }
+
+        public double getMrr() {
+            return mrr;
+        }
+
+        public double getQps() {
+            return latencies.totalNanos() == 0 ? 0 : queries * 1e9 / latencies.totalNanos();
+        }
+
+        public double meanLatencyMillis() {
+            return latencies.meanNanos() / 1e6;
+        }
+
+        /** Latency at {@code quantile} (0..1) in milliseconds. */
+        public double latencyMillis(double quantile) {
+            return latencies.valueAtQuantile(quantile) / 1e6;
+        }
+
+        /** The measured query latencies, to merge into a {@link LatencyReport}. */
+        public LatencyHistogram histogram() {
+            return latencies;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d queries: recall@%d %.4f, MRR %.4f, %.0f QPS, latency mean %.3f / p50 %.3f / p90 %.3f / p99 %.3f ms",
+                    queries, k, recall, mrr, getQps(), meanLatencyMillis(), latencyMillis(0.50), latencyMillis(0.90),
+                    latencyMillis(0.99));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.tlind;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnByteVectorQuery;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+
+import java.io.IOException;
+
+/**
+ * Two-phase search: an HNSW graph proposes {@code overFetch} times more candidates than asked for, and those are
+ * reranked by a more precise distance to the float query.
+ * <p>
+ * The usual setup is an index of {@link ScalarQuantizer} bytes reranked with the exact distance to the full-precision
+ * vectors: the graph stays 4x smaller than a float index, while the final order comes from the floats, so most of the
+ * recall lost to quantization comes back for {@code k * overFetch} extra distance computations per query. The float
+ * vectors are read from a {@link FloatVectors} side store addressed by the ordinal each document carries
+ * ({@link ReusableVectorDocument#withOrdinals}): usually the mapped fvec the index was built from, or a {@link KNN}
+ * store already in memory. Any other {@link Rescorer}, such as a {@link ProductQuantizedIndex}, can take the place of the
+ * floats, and {@link #floats} puts a float-vector graph in front instead.
+ * <p>
+ * The over-fetch factor defaults to {@code -DoverFetch} (3). Hits are scored like Lucene's Euclidean similarity,
+ * {@code 1 / (1 + d^2)}. An instance can be shared between threads.
+ */
+public class RerankingSearcher {
+    private static final int defaultOverFetch = Integer.getInteger("overFetch", 3);
+
+    /** The first phase: a kNN query over {@code numCandidates} graph candidates. */
+    public interface CandidateQuery {
+        Query create(float[] query, int numCandidates);
+    }
+
+    /** Squared distances from one query to documents, by source ordinal. */
+    public interface Distances {
+        float distance(int ordinal);
+    }
+
+    /** The second phase; {@link #forQuery} is called once per query, so it can precompute per-query state. */
+    public interface Rescorer {
+        Distances forQuery(float[] query);
+    }
+
+    /** Full-precision vectors by source ordinal, rescoring with the exact distance. */
+    public interface FloatVectors extends Rescorer {
+        void read(int ordinal, float[] dst);
+
+        @Override
+        default Distances forQuery(float[] query) {
+            float[] vector = new float[query.length];
+            return ordinal -> {
+                read(ordinal, vector);
+                return KNN.squareDistance(query, vector, 0);
+            };
+        }
+
+        static FloatVectors of(MappedVectorFile file) {
+            return file::readFloats;
+        }
+
+        static FloatVectors of(KNN store) {
+            return store::vector;
+        }
+    }
+
+    private final IndexSearcher searcher;
+    private final CandidateQuery candidateQuery;
+    private final Rescorer rescorer;
+    private final int overFetch;
+
+    public RerankingSearcher(IndexSearcher searcher, String field, ScalarQuantizer quantizer, Rescorer rescorer) {
+        this(searcher, field, quantizer, rescorer, defaultOverFetch);
+    }
+
+    public RerankingSearcher(IndexSearcher searcher, String field, ScalarQuantizer quantizer, Rescorer rescorer,
+                             int overFetch) {
+        this(searcher, (query, numCandidates) -> new KnnByteVectorQuery(field, quantizer.quantize(query), numCandidates),
+                rescorer, overFetch);
+    }
+
+    public RerankingSearcher(IndexSearcher searcher, CandidateQuery candidateQuery, Rescorer rescorer, int overFetch) {
+        if (overFetch < 1) {
+            throw new IllegalArgumentException("overFetch must be at least 1, got " + overFetch);
+        }
+        this.searcher = searcher;
+        this.candidateQuery = candidateQuery;
+        this.rescorer = rescorer;
+        this.overFetch = overFetch;
+    }
+
+    /** Candidates from a graph of float vectors, e.g. Lucene's own scalar-quantized format. */
+    public static RerankingSearcher floats(IndexSearcher searcher, String field, Rescorer rescorer, int overFetch) {
+        return new RerankingSearcher(searcher,
+                (query, numCandidates) -> new KnnFloatVectorQuery(field, query, numCandidates), rescorer, overFetch);
+    }
+
+    public static int defaultOverFetch() {
+        return defaultOverFetch;
+    }
+
+    public IndexSearcher getSearcher() {
+        return searcher;
+    }
+
+    public int getOverFetch() {
+        return overFetch;
+    }
+
+    /** The {@code k} of {@code candidates} (source ordinals) with the smallest {@code distances}, nearest first. */
+    public static int[] rescore(int[] candidates, int k, Distances distances) {
+        KNN.TopK best = new KNN.TopK(Math.min(k, candidates.length));
+        for (int i = 0; i < candidates.length; i++) {
+            best.insert(i, distances.distance(candidates[i]));
+        }
+        int[] order = best.sortedOrdinals();
+        int[] ordinals = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            ordinals[i] = candidates[order[i]];
+        }
+        return ordinals;
+    }
+
+    /**
+     * The {@code k} nearest documents to {@code query} after reranking; {@code numCandidates} is the HNSW beam of the
+     * first phase and is raised to the over-fetched candidate count when smaller.
+     */
+    public TopDocs search(float[] query, int k, int numCandidates) throws IOException {
+        int depth = k * overFetch;
+        TopDocs candidates = searcher.search(candidateQuery.create(query, Math.max(depth, numCandidates)), depth);
+        ScoreDoc[] hits = candidates.scoreDocs;
+        int[] ordinals = VectorOrdinals.of(searcher.getIndexReader(), hits);
+
+        // Rank the candidates' positions in hits by the rescorer's distance
+        Distances rescore = rescorer.forQuery(query);
+        KNN.TopK best = new KNN.TopK(Math.min(k, hits.length));
+        float[] distances = new float[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            distances[i] = rescore.distance(ordinals[i]);
+            best.insert(i, distances[i]);
+        }
+
+        int[] order = best.sortedOrdinals();
+        ScoreDoc[] reranked = new ScoreDoc[order.length];
+        for (int i = 0; i < order.length; i++) {
+            reranked[i] = new ScoreDoc(hits[order[i]].doc, 1 / (1 + distances[order[i]]));
+        }
+        return new TopDocs(new TotalHits(reranked.length, TotalHits.Relation.EQUAL_TO), reranked);
+    }
+}
@@ -0,0 +1,154 @@
+package org.tlind;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.KnnByteVectorField;
+import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+
+/**
+ * A document with an identifier field and a single vector field that is filled in place for every record instead of
+ * being rebuilt per {@code addDocument} call.
+ * <p>
+ * The identifier is a {@link StringField}: it is indexed as one term and stored, and never goes through the analyzer.
+ * The vector field is created from the first vector it is given, which fixes the dimension. Lucene copies the vector
+ * when the document is added, so the caller can reuse its array as well.
+ * <p>
+ * An instance is not thread-safe; give each indexing thread its own.
+ * <p>
+ * {@link #floats} and {@link #bytes} turn a batch into an {@code Iterable} for {@code IndexWriter.addDocuments}. Every
+ * element is this same document refilled for the next record, which works because Lucene indexes each document of
+ * the batch before pulling the next one. Values are produced lazily, so quantizing inside the function costs no
+ * extra buffer.
+ * <p>
+ * With {@link #withOrdinals} every document also carries its record's position in the source file as a doc value, which
+ * is how search hits are matched against ground truth no matter in which order the indexing threads added them.
+ */
+public class ReusableVectorDocument {
+    private final String vectorFieldName;
+    private final Document document = new Document();
+    private final StringField idField;
+    private KnnFloatVectorField floatVectorField;
+    private KnnByteVectorField byteVectorField;
+    private NumericDocValuesField ordinalField;
+
+    public ReusableVectorDocument(String idFieldName, String vectorFieldName) {
+        this.vectorFieldName = vectorFieldName;
+        this.idField = new StringField(idFieldName, "", Field.Store.YES);
+        document.add(idField);
+    }
+
+    /** Adds a doc-values field {@code fieldName} holding each record's ordinal; batches must then be given ordinals. */
+    public ReusableVectorDocument withOrdinals(String fieldName) {
+        ordinalField = new NumericDocValuesField(fieldName, 0L);
+        document.add(ordinalField);
+        return this;
+    }
+
+    public Document set(String id, float[] vector) {
+        if (floatVectorField == null) {
+            if (byteVectorField != null) {
+                throw new IllegalStateException("Document already holds a byte vector field");
+            }
+            floatVectorField = new KnnFloatVectorField(vectorFieldName, vector);
+            document.add(floatVectorField);
+        } else {
+            floatVectorField.setVectorValue(vector);
+        }
+        idField.setStringValue(id);
+        return document;
+    }
+
+    public Document set(String id, byte[] vector) {
+        if (byteVectorField == null) {
+            if (floatVectorField != null) {
+                throw new IllegalStateException("Document already holds a float vector field");
+            }
+            byteVectorField = new KnnByteVectorField(vectorFieldName, vector);
+            document.add(byteVectorField);
+        } else {
+            byteVectorField.setVectorValue(vector);
+        }
+        idField.setStringValue(id);
+        return document;
+    }
+
+    public Iterable<Document> floats(int count, IntFunction<String> ids, IntFunction<float[]> vectors) {
+        return floats(-1, count, ids, vectors);
+    }
+
+    /**
+     * A batch of the consecutive records {@code [firstOrdinal, firstOrdinal + count)} that all carry the same
+     * {@code id}; the ordinal goes only into the doc value, so no per-document string or term is created.
+     */
+    public Iterable<Document> floats(int firstOrdinal, int count, String id, IntFunction<float[]> vectors) {
+        return floats(firstOrdinal, count, i -> id, vectors);
+    }
+
+    public Iterable<Document> floats(int firstOrdinal, int count, IntFunction<String> ids, IntFunction<float[]> vectors) {
+        return () -> new BatchIterator(firstOrdinal, count) {
+            @Override
+            Document fill(int i) {
+                return set(ids.apply(i), vectors.apply(i));
+            }
+        };
+    }
+
+    public Iterable<Document> bytes(int count, IntFunction<String> ids, IntFunction<byte[]> vectors) {
+        return bytes(-1, count, ids, vectors);
+    }
+
+    /**
+     * A batch of the consecutive records {@code [firstOrdinal, firstOrdinal + count)} that all carry the same
+     * {@code id}; the ordinal goes only into the doc value, so no per-document string or term is created.
+     */
+    public Iterable<Document> bytes(int firstOrdinal, int count, String id, IntFunction<byte[]> vectors) {
+        return bytes(firstOrdinal, count, i -> id, vectors);
+    }
+
+    public Iterable<Document> bytes(int firstOrdinal, int count, IntFunction<String> ids, IntFunction<byte[]> vectors) {
+        return () -> new BatchIterator(firstOrdinal, count) {
+            @Override
+            Document fill(int i) {
+                return set(ids.apply(i), vectors.apply(i));
+            }
+        };
+    }
+
+    private abstract class BatchIterator implements Iterator<Document> {
+        private final int firstOrdinal; // -1 when the batch has no ordinals
+        private final int count;
+        private int next;
+
+        BatchIterator(int firstOrdinal, int count) {
+            if (ordinalField != null && firstOrdinal < 0) {
+                throw new IllegalStateException("Document records ordinals, but the batch has none");
+            }
+            this.firstOrdinal = firstOrdinal;
+            this.count = count;
+        }
+
+        abstract Document fill(int i);
+
+        @Override
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        @Override
+        public Document next() {
+            if (next >= count) {
+                throw new NoSuchElementException();
+            }
+            if (ordinalField != null) {
+                ordinalField.setLongValue(firstOrdinal + next);
+            }
+            return fill(next++);
+        }
+    }
+}
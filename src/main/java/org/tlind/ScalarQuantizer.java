@@ -0,0 +1,311 @@
+package org.tlind;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * int8 scalar quantizer with a separate scale and offset per dimension.
+ * <p>
+ * Each component is mapped from [lower, upper] onto [-128, 127]; values outside the interval are clamped. The interval
+ * is either the full value range ({@link #fromRange}) or a central percentile of a training sample ({@link #train}), so
+ * a handful of outliers no longer squeeze the rest of the values into a few buckets. A quantizer built with
+ * {@code perDimension = false} uses one interval for every dimension, which is what the old
+ * {@code quantizeToByteVector(vector, min, max)} did.
+ * <p>
+ * The quantizer is stored in the index directory next to the segments ({@link #write}/{@link #read}) so that queries
+ * against an existing index are quantized exactly like the documents were.
+ * <p>
+ * Quantization runs on the Vector API by default and can read straight from a mapped fvec ({@link #quantize(ByteBuffer,
+ * int, byte[])}). The scalar loop is kept as the reference implementation and as a fallback
+ * ({@code -DscalarQuantizer.simd=false}); both paths use only subtract, multiply, min/max and a truncating conversion,
+ * so they produce identical bytes. {@code ScalarQuantizerTest} verifies that.
+ */
+public class ScalarQuantizer {
+    public static final String FILE_NAME = "scalar_quantizer.bin";
+    private static final String CODEC_NAME = "ScalarQuantizer";
+    private static final int VERSION = 0;
+    // Values sorted at most for a clipped global interval (256 MB); larger samples are thinned evenly to fit
+    private static final int MAX_GLOBAL_VALUES = 1 << 26;
+
+    static final boolean SIMD_ENABLED = Boolean.parseBoolean(System.getProperty("scalarQuantizer.simd", "true"));
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, FLOAT_SPECIES.vectorShape());
+    // One byte per float lane; the smallest byte vector is 64 bits, so narrow float shapes store through a mask
+    private static final VectorSpecies<Byte> BYTE_SPECIES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, FLOAT_SPECIES.length() * Byte.SIZE)));
+    private static final VectorMask<Byte> STORE_MASK = BYTE_SPECIES.indexInRange(0, FLOAT_SPECIES.length());
+    private static final boolean MASKED_STORE = BYTE_SPECIES.length() != FLOAT_SPECIES.length();
+
+    private final float[] lower;
+    private final float[] upper;
+    private final float[] scale; // 255 / (upper - lower), or 0 for a constant dimension
+
+    public ScalarQuantizer(float[] lower, float[] upper) {
+        if (lower.length != upper.length) {
+            throw new IllegalArgumentException("lower has " + lower.length + " dimensions but upper has " + upper.length);
+        }
+        this.lower = lower;
+        this.upper = upper;
+        this.scale = new float[lower.length];
+        for (int d = 0; d < lower.length; d++) {
+            if (!(upper[d] >= lower[d])) {
+                throw new IllegalArgumentException("Invalid interval [" + lower[d] + ", " + upper[d] + "] for dimension " + d);
+            }
+            scale[d] = upper[d] > lower[d] ? 255f / (upper[d] - lower[d]) : 0f;
+        }
+    }
+
+    public static ScalarQuantizer global(float min, float max, int dimension) {
+        float[] lower = new float[dimension];
+        float[] upper = new float[dimension];
+        Arrays.fill(lower, min);
+        Arrays.fill(upper, max);
+        return new ScalarQuantizer(lower, upper);
+    }
+
+    public static ScalarQuantizer fromRange(VectorRange range, int dimension, boolean perDimension) {
+        if (perDimension) {
+            if (!range.hasDimensionRanges()) {
+                throw new IllegalArgumentException("Range was computed without per-dimension bounds");
+            }
+            return new ScalarQuantizer(range.getDimensionMin().clone(), range.getDimensionMax().clone());
+        }
+        return global(range.getMin(), range.getMax(), dimension);
+    }
+
+    /**
+     * Fits the quantization intervals to the central {@code clipPercentile} percent of the sample values, e.g. 99.9
+     * clips the lowest and highest 0.05%. A percentile of 100 keeps the full sample range.
+     */
+    public static ScalarQuantizer train(float[][] sample, int count, boolean perDimension, double clipPercentile) {
+        if (count == 0) {
+            throw new IllegalArgumentException("Cannot train a quantizer on zero vectors");
+        }
+        if (clipPercentile <= 0 || clipPercentile > 100) {
+            throw new IllegalArgumentException("clipPercentile must be in (0, 100]: " + clipPercentile);
+        }
+        int dimension = sample[0].length;
+        double tail = (100 - clipPercentile) / 200;
+        float[] lower = new float[dimension];
+        float[] upper = new float[dimension];
+
+        if (perDimension) {
+            float[] values = new float[count];
+            for (int d = 0; d < dimension; d++) {
+                for (int i = 0; i < count; i++) {
+                    values[i] = sample[i][d];
+                }
+                Arrays.sort(values);
+                lower[d] = quantile(values, tail);
+                upper[d] = quantile(values, 1 - tail);
+            }
+        } else if (tail == 0) {
+            // The full range needs no sorting, just the extremes
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                for (float value : sample[i]) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            Arrays.fill(lower, min);
+            Arrays.fill(upper, max);
+        } else {
+            int used = Math.min(count, Math.max(1, MAX_GLOBAL_VALUES / dimension));
+            float[] values = new float[used * dimension];
+            for (int i = 0; i < used; i++) {
+                System.arraycopy(sample[(int) ((long) i * count / used)], 0, values, i * dimension, dimension);
+            }
+            Arrays.sort(values);
+            Arrays.fill(lower, quantile(values, tail));
+            Arrays.fill(upper, quantile(values, 1 - tail));
+        }
+        return new ScalarQuantizer(lower, upper);
+    }
+
+    /** Trains on up to {@code sampleSize} vectors spread evenly over the file. */
+    public static ScalarQuantizer train(MappedVectorFile file, int sampleSize, boolean perDimension, double clipPercentile) {
+        int count = Math.min(sampleSize, file.size());
+        float[][] sample = new float[count][];
+        for (int i = 0; i < count; i++) {
+            sample[i] = file.readFloats((int) ((long) i * file.size() / count));
+        }
+        return train(sample, count, perDimension, clipPercentile);
+    }
+
+    private static float quantile(float[] sorted, double q) {
+        int index = (int) Math.round(q * (sorted.length - 1));
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /** Returns a copy whose intervals are widened by {@code fraction} of their width on each side. */
+    public ScalarQuantizer widen(float fraction) {
+        float[] widenedLower = new float[lower.length];
+        float[] widenedUpper = new float[upper.length];
+        for (int d = 0; d < lower.length; d++) {
+            float margin = (upper[d] - lower[d]) * fraction;
+            widenedLower[d] = lower[d] - margin;
+            widenedUpper[d] = upper[d] + margin;
+        }
+        return new ScalarQuantizer(widenedLower, widenedUpper);
+    }
+
+    public int dimension() {
+        return lower.length;
+    }
+
+    public float[] getLower() {
+        return lower;
+    }
+
+    public float[] getUpper() {
+        return upper;
+    }
+
+    public byte[] quantize(float[] vector) {
+        byte[] result = new byte[vector.length];
+        quantize(vector, result);
+        return result;
+    }
+
+    /** Quantizes into {@code result} and returns how many components had to be clamped into the interval. */
+    public int quantize(float[] vector, byte[] result) {
+        checkDimension(vector.length);
+        return SIMD_ENABLED ? quantizeVectorized(vector, result) : quantizeScalar(vector, result);
+    }
+
+    /**
+     * Quantizes the little-endian floats starting at byte {@code position} of {@code source}, typically
+     * {@link MappedVectorFile#buffer(int)} and {@link MappedVectorFile#position(int)}, without copying them first.
+     */
+    public int quantize(ByteBuffer source, int position, byte[] result) {
+        checkDimension(result.length);
+        return SIMD_ENABLED ? quantizeVectorized(source, position, result) : quantizeScalar(source, position, result);
+    }
+
+    int quantizeScalar(float[] vector, byte[] result) {
+        int clamped = 0;
+        for (int d = 0; d < lower.length; d++) {
+            clamped += quantizeComponent(vector[d], d, result);
+        }
+        return clamped;
+    }
+
+    int quantizeScalar(ByteBuffer source, int position, byte[] result) {
+        int clamped = 0;
+        for (int d = 0; d < lower.length; d++) {
+            clamped += quantizeComponent(source.getFloat(position + d * Float.BYTES), d, result);
+        }
+        return clamped;
+    }
+
+    private int quantizeComponent(float value, int d, byte[] result) {
+        int clamped = 0;
+        float scaled = (value - lower[d]) * scale[d];
+        if (scaled < 0f) {
+            scaled = 0f;
+            clamped = 1;
+        } else if (scaled > 255f) {
+            scaled = 255f;
+            clamped = 1;
+        }
+        // Round half up; scaled is non-negative so the int cast truncates like floor
+        result[d] = (byte) ((int) (scaled + 0.5f) - 128);
+        return clamped;
+    }
+
+    int quantizeVectorized(float[] vector, byte[] result) {
+        int bound = FLOAT_SPECIES.loopBound(lower.length);
+        int clamped = 0;
+        int d = 0;
+        for (; d < bound; d += FLOAT_SPECIES.length()) {
+            clamped += quantizeLanes(FloatVector.fromArray(FLOAT_SPECIES, vector, d), d, result);
+        }
+        for (; d < lower.length; d++) {
+            clamped += quantizeComponent(vector[d], d, result);
+        }
+        return clamped;
+    }
+
+    int quantizeVectorized(ByteBuffer source, int position, byte[] result) {
+        int bound = FLOAT_SPECIES.loopBound(lower.length);
+        int clamped = 0;
+        int d = 0;
+        for (; d < bound; d += FLOAT_SPECIES.length()) {
+            FloatVector values = FloatVector.fromByteBuffer(FLOAT_SPECIES, source, position + d * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            clamped += quantizeLanes(values, d, result);
+        }
+        for (; d < lower.length; d++) {
+            clamped += quantizeComponent(source.getFloat(position + d * Float.BYTES), d, result);
+        }
+        return clamped;
+    }
+
+    private int quantizeLanes(FloatVector values, int d, byte[] result) {
+        FloatVector scaled = values.sub(FloatVector.fromArray(FLOAT_SPECIES, lower, d))
+                .mul(FloatVector.fromArray(FLOAT_SPECIES, scale, d));
+        int clamped = scaled.compare(VectorOperators.LT, 0f).or(scaled.compare(VectorOperators.GT, 255f)).trueCount();
+        scaled = scaled.max(0f).min(255f).add(0.5f);
+        IntVector rounded = ((IntVector) scaled.convertShape(VectorOperators.F2I, INT_SPECIES, 0)).sub(128);
+        ByteVector bytes = (ByteVector) rounded.convertShape(VectorOperators.I2B, BYTE_SPECIES, 0);
+        if (MASKED_STORE) {
+            bytes.intoArray(result, d, STORE_MASK);
+        } else {
+            bytes.intoArray(result, d);
+        }
+        return clamped;
+    }
+
+    private void checkDimension(int length) {
+        if (length != lower.length) {
+            throw new IllegalArgumentException("Expected " + lower.length + " dimensions but got " + length);
+        }
+    }
+
+    public void write(Directory directory) throws IOException {
+        // Lucene leaves files it does not own alone, so a rebuilt on-disk index still has the previous quantizer
+        if (Arrays.asList(directory.listAll()).contains(FILE_NAME)) {
+            directory.deleteFile(FILE_NAME);
+        }
+        try (IndexOutput out = directory.createOutput(FILE_NAME, IOContext.DEFAULT)) {
+            CodecUtil.writeHeader(out, CODEC_NAME, VERSION);
+            out.writeVInt(lower.length);
+            for (int d = 0; d < lower.length; d++) {
+                out.writeInt(Float.floatToIntBits(lower[d]));
+                out.writeInt(Float.floatToIntBits(upper[d]));
+            }
+            CodecUtil.writeFooter(out);
+        }
+    }
+
+    public static ScalarQuantizer read(Directory directory) throws IOException {
+        try (ChecksumIndexInput in = directory.openChecksumInput(FILE_NAME, IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC_NAME, VERSION, VERSION);
+            int dimension = in.readVInt();
+            float[] lower = new float[dimension];
+            float[] upper = new float[dimension];
+            for (int d = 0; d < dimension; d++) {
+                lower[d] = Float.intBitsToFloat(in.readInt());
+                upper[d] = Float.intBitsToFloat(in.readInt());
+            }
+            CodecUtil.checkFooter(in);
+            return new ScalarQuantizer(lower, upper);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.tlind;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures search throughput under concurrent load, to size search nodes.
+ * <p>
+ * Usage: {@code SearchBenchmark <base.fvec> <query.fvec> [groundtruth.ivec]}
+ * <p>
+ * The base is indexed once per segment count in {@code -DbenchSegments} (comma separated, default 1,4), then the query
+ * file is run against each index by every client count in {@code -DbenchClients} (default 1,2,4,8) with every searcher
+ * pool size in {@code -DsearcherThreads} (default 0,4). Clients are threads that each issue one query at a time. A
+ * searcher pool of 0 means a bare {@link IndexSearcher}; otherwise the searcher gets an executor of that size and
+ * Lucene searches the segments of a kNN query in parallel on it, so it only helps with more than one segment.
+ * <p>
+ * Every configuration runs the queries {@code -DbenchRounds} times (default 3) after a warm-up, and reports wall-clock
+ * QPS and the latency percentiles of single queries, plus recall@k when ground truth is given. k, the candidate count
+ * and the warm-up come from {@code -Dk}, {@code -DnumCandidates} and {@code -DwarmupQueries} as in
+ * {@link RecallEvaluator}. With
+ * {@code -DsearchOnly=true} indexes built by an earlier run are reused.
+ */
+public class SearchBenchmark {
+    private static final String segmentCounts = System.getProperty("benchSegments", "1,4");
+    private static final String clientCounts = System.getProperty("benchClients", "1,2,4,8");
+    private static final String searcherThreadCounts = System.getProperty("searcherThreads", "0,4");
+    private static final int rounds = Integer.getInteger("benchRounds", 3);
+    private static final int k = Integer.getInteger("k", 10);
+
+    // One document per indexing thread, refilled for every vector and tagged with its ordinal for recall
+    private static final ThreadLocal<ReusableVectorDocument> documents =
+            ThreadLocal.withInitial(() -> new ReusableVectorDocument("title", "vector").withOrdinals(VectorOrdinals.FIELD));
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: SearchBenchmark <base.fvec> <query.fvec> [groundtruth.ivec]");
+            System.exit(1);
+        }
+
+        float[][] queries;
+        try (var queryFile = MappedVectorFile.open(args[1])) {
+            queries = new float[queryFile.size()][];
+            for (int q = 0; q < queries.length; q++) {
+                queries[q] = queryFile.readFloats(q);
+            }
+        }
+        int[][] groundTruth = args.length > 2 ? VectorFileLoader.readIvecs(args[2]) : null;
+        if (groundTruth != null) {
+            RecallEvaluator.checkGroundTruth(queries.length, groundTruth);
+        }
+        int numCandidates = Math.max(k, RecallEvaluator.defaultNumCandidates());
+
+        List<String> rows = new ArrayList<>();
+        try (var base = MappedVectorFile.open(args[0])) {
+            int[] segmentCountValues = parseInts(segmentCounts);
+            for (int segments : segmentCountValues) {
+                // Every segment needs at least one vector, or the index ends up with fewer than reported
+                if (segments < 1 || segments > base.size()) {
+                    throw new IllegalArgumentException("Cannot build " + segments + " segments from " + base.size() + " vectors");
+                }
+            }
+            for (int segments : segmentCountValues) {
+                try (Directory index = IndexDirectories.open("SearchBenchmark", "segments-" + segments)) {
+                    if (IndexDirectories.searchOnly()) {
+                        if (!DirectoryReader.indexExists(index)) {
+                            throw new IllegalStateException("No index with " + segments + " segments to search, run without -DsearchOnly first");
+                        }
+                    } else {
+                        System.out.println("\nBuilding " + base.size() + " vectors into " + segments + " segments");
+                        build(index, base, segments);
+                    }
+
+                    try (DirectoryReader reader = DirectoryReader.open(index)) {
+                        for (int searcherThreads : parseInts(searcherThreadCounts)) {
+                            ExecutorService searchExecutor = searcherThreads > 0 ? Executors.newFixedThreadPool(searcherThreads) : null;
+                            try {
+                                IndexSearcher searcher = new IndexSearcher(reader, searchExecutor);
+                                for (int clients : parseInts(clientCounts)) {
+                                    String row = run(searcher, queries, groundTruth, numCandidates, clients,
+                                            reader.leaves().size(), searcherThreads);
+                                    System.out.println(row);
+                                    rows.add(row);
+                                }
+                            } finally {
+                                if (searchExecutor != null) {
+                                    searchExecutor.shutdown();
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        System.out.println("\nSearch throughput (" + VectorCodecs.describe() + ", k=" + k + ", " + numCandidates
+                + " candidates, " + queries.length + " queries x " + rounds + " rounds, "
+                + Runtime.getRuntime().availableProcessors() + " cores):");
+        System.out.println(header());
+        rows.forEach(System.out::println);
+    }
+
+    /** Indexes the base as exactly {@code segments} segments of consecutive records. */
+    private static void build(Directory index, MappedVectorFile base, int segments) throws IOException, InterruptedException {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        // Only the explicit flushes below cut segments, and nothing merges them afterwards
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        config.setMaxBufferedDocs(base.size() + 1);
+        config.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+
+        ProgressBar progressBar = new ProgressBar(base.size());
+        try (IndexWriter writer = new IndexWriter(index, IndexDirectories.forBuild(VectorCodecs.configure(config)))) {
+            for (int s = 0; s < segments; s++) {
+                int start = (int) ((long) base.size() * s / segments);
+                int end = (int) ((long) base.size() * (s + 1) / segments);
+                // One indexing thread fills one in-memory segment, so each flush writes exactly one segment
+                new FvecIngestPipeline(base, 1, 2, Integer.getInteger("blockSize", 256), true)
+                        .range(start, end)
+                        .withProgressBar(progressBar)
+                        .run(() -> block -> writer.addDocuments(
+                                documents.get().floats(block.start(), block.count(), "title", block::vector)));
+                writer.flush();
+            }
+            writer.commit();
+        }
+        System.out.println();
+    }
+
+    private static String run(IndexSearcher searcher, float[][] queries, int[][] groundTruth, int numCandidates,
+                              int clients, int segments, int searcherThreads) throws IOException, InterruptedException {
+        // Warm up before timing so the first queries do not pay for loading the graph
+        for (int q = 0; q < Math.min(RecallEvaluator.warmupQueries(), queries.length); q++) {
+            searcher.search(new KnnFloatVectorQuery("vector", queries[q], numCandidates), k);
+        }
+
+        int operations = queries.length * rounds;
+        // Each client records into its own histogram; they are merged once the clients are done
+        LatencyHistogram[] clientLatencies = new LatencyHistogram[clients];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger found = new AtomicInteger();
+
+        ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>(clients);
+            for (int c = 0; c < clients; c++) {
+                LatencyHistogram latencies = clientLatencies[c] = new LatencyHistogram();
+                futures.add(clientPool.submit(() -> {
+                    int op;
+                    while ((op = next.getAndIncrement()) < operations) {
+                        int q = op % queries.length;
+                        KnnFloatVectorQuery query = new KnnFloatVectorQuery("vector", queries[q], numCandidates);
+                        long begin = System.nanoTime();
+                        TopDocs topDocs = searcher.search(query, k);
+                        latencies.recordSince(begin);
+                        // Recall is the same every round, so score the first one only
+                        if (groundTruth != null && op < queries.length) {
+                            int[] ordinals = VectorOrdinals.of(searcher.getIndexReader(), topDocs.scoreDocs);
+                            found.addAndGet(RecallEvaluator.matches(ordinals, groundTruth[q], k));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            clientPool.shutdown();
+        }
+        long wallNanos = System.nanoTime() - start;
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        for (LatencyHistogram client : clientLatencies) {
+            latencies.merge(client);
+        }
+        String recall = "-";
+        if (groundTruth != null) {
+            long expected = 0;
+            for (int q = 0; q < queries.length; q++) {
+                expected += Math.min(k, groundTruth[q].length);
+            }
+            recall = String.format("%.4f", expected == 0 ? 0 : (double) found.get() / expected);
+        }
+        return String.format("%7d %8d %15d %9.0f %9.3f %9.3f %9.3f %9.3f %8s", clients, segments, searcherThreads,
+                operations * 1e9 / wallNanos, latencies.meanNanos() / 1e6, latencies.valueAtQuantile(0.50) / 1e6,
+                latencies.valueAtQuantile(0.90) / 1e6, latencies.valueAtQuantile(0.99) / 1e6, recall);
+    }
+
+    private static String header() {
+        return "clients segments searcherThreads       QPS mean (ms)  p50 (ms)  p90 (ms)  p99 (ms)   recall";
+    }
+
+    private static int[] parseInts(String values) {
+        return Arrays.stream(values.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+}
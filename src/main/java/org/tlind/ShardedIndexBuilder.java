@@ -0,0 +1,255 @@
+package org.tlind;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds an fvec as K independent indexes at the same time, one per contiguous range of records, and then
+ * consolidates them.
+ * <p>
+ * A single writer followed by {@code forceMerge(1)} rebuilds the whole HNSW graph on one thread. Here every shard is
+ * force-merged by its own thread, so the graph building is spread over K smaller graphs. Afterwards the shards are
+ * either left as they are and searched through a {@link MultiReader} ({@link Consolidation#NONE}), copied into one
+ * index of K segments with {@code IndexWriter.addIndexes} ({@link Consolidation#ADD_INDEXES}), or copied and then
+ * merged into a single segment ({@link Consolidation#MERGE}), which pays the serial graph build again.
+ * <p>
+ * The ingestion threads ({@code -DindexThreads}) are split evenly over the shards.
+ */
+public class ShardedIndexBuilder {
+    public enum Consolidation { NONE, ADD_INDEXES, MERGE }
+
+    private static final int searchQueries = Integer.getInteger("searchQueries", 1000);
+    private static final int searchK = Integer.getInteger("searchK", 10);
+
+    // One document per indexing thread, refilled for every vector
+    private static final ThreadLocal<ReusableVectorDocument> documents =
+            ThreadLocal.withInitial(() -> new ReusableVectorDocument("title", "vector"));
+
+    private final MappedVectorFile file;
+    private final int shards;
+    private final Consolidation consolidation;
+    private final String indexName;
+
+    public ShardedIndexBuilder(MappedVectorFile file, int shards, Consolidation consolidation, String indexName) {
+        if (shards < 1 || shards > file.size()) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + file.size() + ", got " + shards);
+        }
+        this.file = file;
+        this.shards = shards;
+        this.consolidation = consolidation;
+        this.indexName = indexName;
+    }
+
+    /**
+     * Builds {@code fvecPath} once for every shard count in {@code shardCounts} (comma separated) and prints build,
+     * consolidation and search cost side by side. Consolidation comes from {@code -Dconsolidation}.
+     */
+    public static void sweep(String fvecPath, String shardCounts, String indexName) throws IOException, InterruptedException {
+        Consolidation consolidation = Consolidation.valueOf(
+                System.getProperty("consolidation", "add_indexes").toUpperCase(Locale.ROOT));
+        List<String> rows = new ArrayList<>();
+
+        try (var file = MappedVectorFile.open(fvecPath)) {
+            float[][] queries = sampleQueries(file, Math.min(searchQueries, file.size()));
+            for (String count : shardCounts.split(",")) {
+                int shards = Integer.parseInt(count.trim());
+                System.out.println("\nBuilding " + file.size() + " vectors as " + shards + " shards (" + consolidation + ")");
+
+                Result result = new ShardedIndexBuilder(file, shards, consolidation, indexName).build();
+                try (IndexReader reader = result.openReader()) {
+                    double searchMillis = averageSearchMillis(new IndexSearcher(reader), queries);
+                    rows.add(String.format("%6d %12d %16d %9d %10.1f %14.3f",
+                            shards, result.buildNanos / 1_000_000, result.consolidationNanos / 1_000_000,
+                            reader.leaves().size(), result.sizeInBytes / (1024.0 * 1024), searchMillis));
+                } finally {
+                    result.close();
+                }
+            }
+        }
+
+        System.out.println("\nSharded build, " + consolidation + " (" + VectorCodecs.describe() + "), search over " + searchQueries + " queries at k=" + searchK + ":");
+        System.out.println("shards   build (ms)  consolidate (ms)  segments  size (MB)  search (ms/q)");
+        rows.forEach(System.out::println);
+    }
+
+    public Result build() throws IOException, InterruptedException {
+        Directory[] shardDirectories = new Directory[shards];
+        for (int s = 0; s < shards; s++) {
+            shardDirectories[s] = IndexDirectories.open(indexName, "k" + shards + "/shard-" + s);
+        }
+
+        int threads = Integer.getInteger("indexThreads", Runtime.getRuntime().availableProcessors());
+        int threadsPerShard = Math.max(1, threads / shards);
+        ProgressBar progressBar = new ProgressBar(file.size());
+
+        long buildStart = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(shards);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int s = 0; s < shards; s++) {
+                int start = (int) ((long) file.size() * s / shards);
+                int end = (int) ((long) file.size() * (s + 1) / shards);
+                Directory directory = shardDirectories[s];
+                futures.add(executor.submit(() -> {
+                    buildShard(directory, start, end, threadsPerShard, progressBar);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        long buildNanos = System.nanoTime() - buildStart;
+        System.out.println();
+
+        if (consolidation == Consolidation.NONE) {
+            long size = 0;
+            for (Directory directory : shardDirectories) {
+                size += IndexDirectories.sizeInBytes(directory);
+            }
+            return new Result(buildNanos, 0, size, null, shardDirectories);
+        }
+
+        long consolidationStart = System.nanoTime();
+        Directory target = IndexDirectories.open(indexName, "k" + shards + "/index");
+        IndexWriterConfig config = writerConfig(1);
+        if (consolidation == Consolidation.ADD_INDEXES) {
+            // Keep exactly one segment per shard; a natural merge would rebuild graphs inside the timed consolidation
+            config.setMergePolicy(NoMergePolicy.INSTANCE);
+        }
+        try (IndexWriter writer = new IndexWriter(target, IndexDirectories.forBuild(config))) {
+            // Copies the shard segments as they are; no graph is rebuilt unless we merge afterwards
+            writer.addIndexes(shardDirectories);
+            if (consolidation == Consolidation.MERGE) {
+                writer.forceMerge(1);
+            }
+        }
+        long consolidationNanos = System.nanoTime() - consolidationStart;
+
+        for (Directory directory : shardDirectories) {
+            // The shards were copied, so their files are no longer needed
+            for (String name : directory.listAll()) {
+                directory.deleteFile(name);
+            }
+            directory.close();
+        }
+        return new Result(buildNanos, consolidationNanos, IndexDirectories.sizeInBytes(target), target, new Directory[0]);
+    }
+
+    private void buildShard(Directory directory, int start, int end, int threads, ProgressBar progressBar)
+            throws IOException, InterruptedException {
+        try (IndexWriter writer = new IndexWriter(directory, IndexDirectories.forBuild(writerConfig(shards)))) {
+            new FvecIngestPipeline(file, threads, 2 * threads, Integer.getInteger("blockSize", 256), true)
+                    .range(start, end)
+                    .withProgressBar(progressBar)
+                    .run(() -> block -> writer.addDocuments(documents.get().floats(block.count(), i -> "title",
+                            block::vector)));
+            // Each shard builds its own single graph, concurrently with the others
+            writer.forceMerge(1);
+        }
+    }
+
+    private static IndexWriterConfig writerConfig(int writers) {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setMergePolicy(new LogByteSizeMergePolicy());
+        // The writers share the heap, so they share the 256 MB buffer a single writer gets
+        config.setRAMBufferSizeMB(Math.max(16.0, 256.0 / writers));
+        return VectorCodecs.configure(config);
+    }
+
+    private static float[][] sampleQueries(MappedVectorFile file, int count) {
+        // Spread over the whole file so every shard holds some of the true neighbours
+        float[][] queries = new float[count][];
+        for (int i = 0; i < count; i++) {
+            queries[i] = file.readFloats((int) ((long) file.size() * i / count));
+        }
+        return queries;
+    }
+
+    private static double averageSearchMillis(IndexSearcher searcher, float[][] queries) throws IOException {
+        // Warm up before timing so the first queries do not pay for loading the graph
+        for (int i = 0; i < Math.min(100, queries.length); i++) {
+            searcher.search(new KnnFloatVectorQuery("vector", queries[i], searchK), searchK);
+        }
+        long start = System.nanoTime();
+        for (float[] query : queries) {
+            searcher.search(new KnnFloatVectorQuery("vector", query, searchK), searchK);
+        }
+        return (System.nanoTime() - start) / 1e6 / queries.length;
+    }
+
+    public static class Result {
+        private final long buildNanos;
+        private final long consolidationNanos;
+        private final long sizeInBytes;
+        private final Directory index; // null when the shards were not consolidated
+        private final Directory[] shards;
+
+        Result(long buildNanos, long consolidationNanos, long sizeInBytes, Directory index, Directory[] shards) {
+            this.buildNanos = buildNanos;
+            this.consolidationNanos = consolidationNanos;
+            this.sizeInBytes = sizeInBytes;
+            this.index = index;
+            this.shards = shards;
+        }
+
+        public long getBuildNanos() {
+            return buildNanos;
+        }
+
+        public long getConsolidationNanos() {
+            return consolidationNanos;
+        }
+
+        public long getSizeInBytes() {
+            return sizeInBytes;
+        }
+
+        /** Opens the consolidated index, or all shards behind one {@link MultiReader}. */
+        public IndexReader openReader() throws IOException {
+            if (index != null) {
+                return DirectoryReader.open(index);
+            }
+            IndexReader[] readers = new IndexReader[shards.length];
+            for (int s = 0; s < shards.length; s++) {
+                readers[s] = DirectoryReader.open(shards[s]);
+            }
+            return new MultiReader(readers);
+        }
+
+        public void close() throws IOException {
+            if (index != null) {
+                index.close();
+            }
+            for (Directory shard : shards) {
+                shard.close();
+            }
+        }
+    }
+}
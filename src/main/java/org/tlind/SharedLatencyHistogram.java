@@ -0,0 +1,59 @@
+package org.tlind;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counterpart of {@link LatencyHistogram}, with the same buckets, that any number of threads can record into.
+ * <p>
+ * Every sample is a handful of atomic updates on shared counters, so it suits low-rate events such as one sample per
+ * batch or per merge; hot paths record into a {@link LatencyHistogram} per thread and {@link #merge} it once the
+ * thread is done. Percentiles are read from a {@link #snapshot}.
+ */
+public final class SharedLatencyHistogram {
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** Records one latency; negative values, from a clock read on another core, count as zero. */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(LatencyHistogram.bucket(value));
+        count.incrementAndGet();
+        totalNanos.addAndGet(value);
+        maxNanos.accumulateAndGet(value, Math::max);
+    }
+
+    /** Records the time since {@code startNanos}, a {@link System#nanoTime} reading, and returns the current time. */
+    public long recordSince(long startNanos) {
+        long now = System.nanoTime();
+        record(now - startNanos);
+        return now;
+    }
+
+    /** Adds the samples of {@code other}, which must no longer be recorded into. */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long n = other.countAt(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.addAndGet(other.count());
+        totalNanos.addAndGet(other.totalNanos());
+        maxNanos.accumulateAndGet(other.maxNanos(), Math::max);
+    }
+
+    /**
+     * A copy of the counters as a plain histogram. Samples recorded while it is taken may be partly included, so take
+     * it once recording is done for exact figures.
+     */
+    public LatencyHistogram snapshot() {
+        long[] copy = new long[LatencyHistogram.BUCKETS];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new LatencyHistogram(copy, count.get(), totalNanos.get(), maxNanos.get());
+    }
+}
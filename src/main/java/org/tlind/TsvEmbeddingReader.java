@@ -0,0 +1,299 @@
+package org.tlind;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads TSV embedding dumps ({@code title\temb} as written by {@code load_wikipedia.py}, or {@code id\ttitle\temb})
+ * straight from bytes.
+ * <p>
+ * Lines are located in a reusable byte buffer and the comma-separated embedding is parsed in place into a primitive
+ * {@code float[]}, so no line {@code String}, split arrays or boxed values are created. {@link #next(float[])} fills a
+ * caller-owned array and allocates nothing but the title; {@link #next()} returns a fresh {@link EmbeddingRecord} for
+ * callers that keep records around, e.g. in indexing batches.
+ * <p>
+ * Numbers are decoded with {@link #parseFloat}, which yields the same value as {@code (float) Double.parseDouble}.
+ */
+public class TsvEmbeddingReader implements Closeable {
+    private static final int INITIAL_BUFFER_BYTES = 1 << 20;
+    private static final double[] POWERS_OF_TEN = new double[23]; // all exactly representable
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final InputStream in;
+    private final int titleColumn;
+    private final int embeddingColumn;
+    private byte[] buffer = new byte[INITIAL_BUFFER_BYTES];
+    private int position;
+    private int limit;
+    private boolean eof;
+    // Bounds of the current line within the buffer
+    private int lineStart;
+    private int lineEnd;
+    private int lineNumber;
+
+    private int dimension = -1;
+    private String title;
+
+    public TsvEmbeddingReader(String filePath, int titleColumn, int embeddingColumn) throws IOException {
+        this(new FileInputStream(filePath), titleColumn, embeddingColumn);
+    }
+
+    public TsvEmbeddingReader(InputStream in, int titleColumn, int embeddingColumn) {
+        this.in = in;
+        this.titleColumn = titleColumn;
+        this.embeddingColumn = embeddingColumn;
+    }
+
+    /** Returns the next record, or {@code null} at the end of the file. */
+    public EmbeddingRecord next() throws IOException {
+        if (!nextLine()) {
+            return null;
+        }
+        float[] emb = new float[dimension > 0 ? dimension : countComponents()];
+        parseCurrent(emb);
+        return new EmbeddingRecord(title, emb);
+    }
+
+    /**
+     * Parses the next line into {@code emb} and returns the number of components, or -1 at the end of the file. Every
+     * line must have as many components as the first. The title of the line is available from {@link #title()} until
+     * the next call.
+     */
+    public int next(float[] emb) throws IOException {
+        if (!nextLine()) {
+            return -1;
+        }
+        return parseCurrent(emb);
+    }
+
+    public String title() {
+        return title;
+    }
+
+    private boolean nextLine() throws IOException {
+        while (true) {
+            int newline = indexOf((byte) '\n', position, limit);
+            if (newline >= 0) {
+                lineNumber++;
+                lineStart = position;
+                lineEnd = newline > position && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+                position = newline + 1;
+                if (lineEnd > lineStart) {
+                    return true;
+                }
+                continue; // skip blank lines
+            }
+            if (eof) {
+                if (position < limit) {
+                    lineNumber++;
+                    lineStart = position;
+                    lineEnd = limit;
+                    position = limit;
+                    return true;
+                }
+                return false;
+            }
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2); // a single line is longer than the buffer
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            eof = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    private int parseCurrent(float[] emb) throws IOException {
+        title = null;
+        int start = lineStart;
+        int column = 0;
+        int embStart = -1;
+        int embEnd = -1;
+        while (start <= lineEnd) {
+            int tab = indexOf((byte) '\t', start, lineEnd);
+            int end = tab < 0 ? lineEnd : tab;
+            if (column == titleColumn) {
+                title = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+            }
+            if (column == embeddingColumn) {
+                embStart = start;
+                embEnd = end;
+            }
+            column++;
+            if (tab < 0) {
+                break;
+            }
+            start = tab + 1;
+        }
+        if (embStart < 0) {
+            throw new IOException("Line " + lineNumber + " has " + column + " columns, expected an embedding in column "
+                    + embeddingColumn + ": " + new String(buffer, lineStart, Math.min(lineEnd - lineStart, 200), StandardCharsets.UTF_8));
+        }
+
+        int count = 0;
+        int from = embStart;
+        while (from < embEnd) {
+            int comma = indexOf((byte) ',', from, embEnd);
+            int to = comma < 0 ? embEnd : comma;
+            if (count == emb.length) {
+                throw new IOException("Embedding on line " + lineNumber + " has more than " + emb.length + " components");
+            }
+            try {
+                emb[count++] = parseFloat(buffer, from, to);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid embedding component on line " + lineNumber + ": " + e.getMessage(), e);
+            }
+            from = to + 1;
+        }
+        if (dimension < 0) {
+            dimension = count;
+        } else if (count != dimension) {
+            throw new IOException("Embedding on line " + lineNumber + " has " + count + " components, expected " + dimension);
+        }
+        return count;
+    }
+
+    private int countComponents() {
+        // Only needed for the first line; later lines reuse its dimension
+        int tabs = 0;
+        int start = lineStart;
+        while (tabs < embeddingColumn) {
+            start = indexOf((byte) '\t', start, lineEnd) + 1;
+            tabs++;
+        }
+        int end = indexOf((byte) '\t', start, lineEnd);
+        end = end < 0 ? lineEnd : end;
+        int count = start < end ? 1 : 0;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == ',') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a decimal number from {@code bytes[from, to)} as {@code (float) Double.parseDouble} would.
+     * <p>
+     * When the significant digits fit in 53 bits and the decimal exponent is within 22, both the digits and the power
+     * of ten are exact doubles and a single multiply or divide is correctly rounded (Clinger's fast path). That covers
+     * the numbers Python writes for our embeddings; anything else falls back to {@link Double#parseDouble}.
+     */
+    public static float parseFloat(byte[] bytes, int from, int to) {
+        int i = from;
+        while (i < to && bytes[i] == ' ') {
+            i++;
+        }
+        int end = to;
+        while (end > i && bytes[end - 1] == ' ') {
+            end--;
+        }
+        int start = i;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+            sawDigit = true;
+            if (mantissa != 0 || bytes[i] != '0') {
+                if (digits == 18) {
+                    return slowParse(bytes, start, end);
+                }
+                mantissa = mantissa * 10 + (bytes[i] - '0');
+                digits++;
+            }
+        }
+        if (i < end && bytes[i] == '.') {
+            i++;
+            for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+                sawDigit = true;
+                if (mantissa != 0 || bytes[i] != '0') {
+                    if (digits == 18) {
+                        return slowParse(bytes, start, end);
+                    }
+                    mantissa = mantissa * 10 + (bytes[i] - '0');
+                    digits++;
+                }
+                exponent--;
+            }
+        }
+        if (!sawDigit) {
+            return slowParse(bytes, start, end);
+        }
+        if (i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int explicit = 0;
+            int exponentDigits = 0;
+            for (; i < end && bytes[i] >= '0' && bytes[i] <= '9' && exponentDigits < 6; i++, exponentDigits++) {
+                explicit = explicit * 10 + (bytes[i] - '0');
+            }
+            if (exponentDigits == 0) {
+                return slowParse(bytes, start, end);
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (i != end) {
+            return slowParse(bytes, start, end);
+        }
+
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        } else {
+            return slowParse(bytes, start, end);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private static float slowParse(byte[] bytes, int from, int to) {
+        return (float) Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,105 @@
+package org.tlind;
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.KnnVectorsFormat;
+import org.apache.lucene.codecs.lucene99.Lucene99Codec;
+import org.apache.lucene.codecs.lucene99.Lucene99HnswScalarQuantizedVectorsFormat;
+import org.apache.lucene.codecs.lucene99.Lucene99HnswVectorsFormat;
+import org.apache.lucene.index.IndexWriterConfig;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The codec every build program writes its vectors with.
+ * <p>
+ * By default Lucene builds the HNSW graph of a merged segment on the merging thread alone, which makes
+ * {@code forceMerge(1)} the longest serial step of a build. {@link Lucene99HnswVectorsFormat} can spread that work over
+ * several merge workers on an executor, and also takes the graph parameters. They are read from
+ * {@code -DhnswMaxConn} (default 16), {@code -DhnswBeamWidth} (default 100) and {@code -DhnswMergeWorkers} (default 1,
+ * i.e. Lucene's own behaviour).
+ * <p>
+ * {@code -DvectorFormat=scalar_quantized} switches to {@link Lucene99HnswScalarQuantizedVectorsFormat}: documents still
+ * carry float vectors, and Lucene quantizes them to int7 per segment, calibrating the range from a confidence interval
+ * ({@code -DconfidenceInterval}, by default derived from the dimension). The raw floats are kept next to the
+ * quantized vectors so merged segments can be requantized; searches score with the quantized vectors.
+ * <p>
+ * Both formats keep their standard names, so indexes written this way open with the default codec.
+ */
+public final class VectorCodecs {
+    private static final int maxConn = Integer.getInteger("hnswMaxConn", Lucene99HnswVectorsFormat.DEFAULT_MAX_CONN);
+    private static final int beamWidth = Integer.getInteger("hnswBeamWidth", Lucene99HnswVectorsFormat.DEFAULT_BEAM_WIDTH);
+    private static final int mergeWorkers = Integer.getInteger("hnswMergeWorkers", Lucene99HnswVectorsFormat.DEFAULT_NUM_MERGE_WORKER);
+    private static final boolean scalarQuantized = "scalar_quantized".equals(System.getProperty("vectorFormat", "hnsw").toLowerCase(Locale.ROOT));
+    private static final Float confidenceInterval = System.getProperty("confidenceInterval") == null
+            ? null : Float.valueOf(System.getProperty("confidenceInterval"));
+
+    private static ExecutorService mergeExecutor;
+
+    private VectorCodecs() {
+    }
+
+    /** Sets the configured codec on {@code config}. */
+    public static IndexWriterConfig configure(IndexWriterConfig config) {
+        return config.setCodec(scalarQuantized ? scalarQuantizedCodec() : codec());
+    }
+
+    /** Plain HNSW with the configured graph parameters, whatever {@code -DvectorFormat} says. */
+    public static Codec codec() {
+        return codec(maxConn, beamWidth, mergeWorkers);
+    }
+
+    /** Scalar-quantized HNSW with the configured graph parameters and confidence interval. */
+    public static Codec scalarQuantizedCodec() {
+        return scalarQuantizedCodec(maxConn, beamWidth, mergeWorkers, confidenceInterval);
+    }
+
+    public static Codec codec(int maxConn, int beamWidth, int mergeWorkers) {
+        return withFormat(new Lucene99HnswVectorsFormat(maxConn, beamWidth, mergeWorkers,
+                mergeWorkers > 1 ? mergeExecutor() : null));
+    }
+
+    /** Lucene's int7 scalar-quantized HNSW; a null confidence interval lets Lucene choose it from the dimension. */
+    public static Codec scalarQuantizedCodec(int maxConn, int beamWidth, int mergeWorkers, Float confidenceInterval) {
+        return withFormat(new Lucene99HnswScalarQuantizedVectorsFormat(maxConn, beamWidth, mergeWorkers,
+                confidenceInterval, mergeWorkers > 1 ? mergeExecutor() : null));
+    }
+
+    /** The default codec with {@code format} used for every vector field. */
+    public static Codec withFormat(KnnVectorsFormat format) {
+        return new Lucene99Codec() {
+            @Override
+            public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+                return format;
+            }
+        };
+    }
+
+    /**
+     * Threads for concurrent graph merges. The pool grows to however many workers a merge asks for; its threads are
+     * daemons so a finished build can exit without shutting it down.
+     */
+    static synchronized ExecutorService mergeExecutor() {
+        if (mergeExecutor == null) {
+            mergeExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "hnsw-merge");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return mergeExecutor;
+    }
+
+    public static int mergeWorkers() {
+        return mergeWorkers;
+    }
+
+    public static String describe() {
+        return (scalarQuantized ? "scalar quantized, " : "") + describe(maxConn, beamWidth, mergeWorkers);
+    }
+
+    public static String describe(int maxConn, int beamWidth, int mergeWorkers) {
+        return "maxConn=" + maxConn + ", beamWidth=" + beamWidth + ", mergeWorkers=" + mergeWorkers;
+    }
+}
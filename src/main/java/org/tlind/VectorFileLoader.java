@@ -1,83 +1,40 @@
 package org.tlind;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
 
 public class VectorFileLoader {
     public static ArrayList<float[]> readFvecs(String filePath) throws IOException {
-        var vectors = new ArrayList<float[]>();
-        try (var dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))) {
-            while (dis.available() > 0) {
-                var dimension = Integer.reverseBytes(dis.readInt());
-                assert dimension > 0 : dimension;
-                var buffer = new byte[dimension * Float.BYTES];
-                dis.readFully(buffer);
-                var byteBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
-
-                var vector = new float[dimension];
-                var floatBuffer = byteBuffer.asFloatBuffer();
-                floatBuffer.get(vector);
-                vectors.add(vector);
+        try (var file = MappedVectorFile.open(filePath)) {
+            var vectors = new ArrayList<float[]>(file.size());
+            for (int ord = 0; ord < file.size(); ord++) {
+                vectors.add(file.readFloats(ord));
             }
+            return vectors;
         }
-        return vectors;
     }
 
     public static float[] findMinAndMax(String filePath) throws IOException {
-        float[] minAndMax = new float[2];
-        minAndMax[0] = Float.MAX_VALUE;
-        minAndMax[1] = Float.MIN_VALUE;
-        try (var dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))) {
-            while (dis.available() > 0) {
-                var dimension = Integer.reverseBytes(dis.readInt());
-                assert dimension > 0 : dimension;
-                var buffer = new byte[dimension * Float.BYTES];
-                dis.readFully(buffer);
-                var byteBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
-
-                var vector = new float[dimension];
-                var floatBuffer = byteBuffer.asFloatBuffer();
-                floatBuffer.get(vector);
-                for (int i = 0; i < vector.length; i++) {
-                    if (vector[i] < minAndMax[0]) {
-                        minAndMax[0] = vector[i];
-                    }
-                    if (vector[i] > minAndMax[1]) {
-                        minAndMax[1] = vector[i];
-                    }
-                }
-            }
+        try (var file = MappedVectorFile.open(filePath)) {
+            VectorRange range = VectorRange.scan(file, false);
+            return new float[]{range.getMin(), range.getMax()};  // [0] is min, [1] is max
         }
-        return minAndMax;  // minAndMax[0] is min, minAndMax[1] is max
     }
 
-    public static ArrayList<Set<Integer>> readIvecs(String filename) {
-        var groundTruthTopK = new ArrayList<Set<Integer>>();
-
-        try (var dis = new DataInputStream(new FileInputStream(filename))) {
-            while (dis.available() > 0) {
-                var numNeighbors = Integer.reverseBytes(dis.readInt());
-                var neighbors = new HashSet<Integer>(numNeighbors);
-
-                for (var i = 0; i < numNeighbors; i++) {
-                    var neighbor = Integer.reverseBytes(dis.readInt());
-                    neighbors.add(neighbor);
-                }
+    public static VectorRange findRange(String filePath, boolean perDimension) throws IOException {
+        try (var file = MappedVectorFile.open(filePath)) {
+            return VectorRange.scan(file, perDimension);
+        }
+    }
 
-                groundTruthTopK.add(neighbors);
+    /** Reads an ivec ground truth file with every row in its original order, nearest neighbour first. */
+    public static int[][] readIvecs(String filePath) throws IOException {
+        try (var file = MappedVectorFile.open(filePath, true)) {
+            int[][] rows = new int[file.size()][];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = file.readInts(i);
             }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            return rows;
         }
-
-        return groundTruthTopK;
     }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+package org.tlind;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Maps search hits back to the position of their vector in the source file, using the doc value written by
+ * {@link ReusableVectorDocument#withOrdinals}. Lucene doc ids follow the order the indexing threads added documents in,
+ * so they cannot be compared with ground truth directly.
+ */
+public final class VectorOrdinals {
+    public static final String FIELD = "ord";
+
+    private VectorOrdinals() {
+    }
+
+    public static int[] of(IndexReader reader, ScoreDoc[] hits) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        int[] ordinals = new int[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(hits[i].doc, leaves));
+            NumericDocValues values = leaf.reader().getNumericDocValues(FIELD);
+            if (values == null || !values.advanceExact(hits[i].doc - leaf.docBase)) {
+                throw new IllegalStateException("Document " + hits[i].doc + " has no " + FIELD
+                        + " value; was the index built with ordinals?");
+            }
+            ordinals[i] = (int) values.longValue();
+        }
+        return ordinals;
+    }
+}
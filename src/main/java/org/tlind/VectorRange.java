@@ -0,0 +1,206 @@
+package org.tlind;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Value range of a vector dataset, used to calibrate int8 quantization.
+ * <p>
+ * {@link #scan} replaces the serial decode in the old {@code findMinAndMax}: the mapped file is split into record
+ * ranges that are scanned in parallel on a fork-join pool, each reading lanes straight out of the mapping with the
+ * Vector API, and the partial ranges are merged on the way back up.
+ */
+public class VectorRange {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int RECORDS_PER_TASK = 4096;
+
+    private final float min;
+    private final float max;
+    private final float[] dimensionMin; // null unless per-dimension ranges were requested
+    private final float[] dimensionMax;
+
+    public VectorRange(float min, float max, float[] dimensionMin, float[] dimensionMax) {
+        this.min = min;
+        this.max = max;
+        this.dimensionMin = dimensionMin;
+        this.dimensionMax = dimensionMax;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public boolean hasDimensionRanges() {
+        return dimensionMin != null;
+    }
+
+    public float[] getDimensionMin() {
+        return dimensionMin;
+    }
+
+    public float[] getDimensionMax() {
+        return dimensionMax;
+    }
+
+    public static VectorRange scan(MappedVectorFile file, boolean perDimension) {
+        return scan(file, perDimension, ForkJoinPool.commonPool());
+    }
+
+    public static VectorRange scan(MappedVectorFile file, boolean perDimension, ForkJoinPool pool) {
+        if (file.size() == 0) {
+            throw new IllegalArgumentException("Cannot compute the range of an empty vector file: " + file.getPath());
+        }
+        return pool.invoke(new ScanTask(file, 0, file.size(), perDimension));
+    }
+
+    /** Range of vectors already on the heap, e.g. a calibration sample. */
+    public static VectorRange of(float[][] vectors, int count, boolean perDimension) {
+        if (count == 0) {
+            throw new IllegalArgumentException("Cannot compute the range of zero vectors");
+        }
+        Accumulator acc = new Accumulator(vectors[0].length, perDimension);
+        for (int i = 0; i < count; i++) {
+            acc.add(vectors[i]);
+        }
+        return acc.toRange();
+    }
+
+    private VectorRange merge(VectorRange other) {
+        if (dimensionMin == null) {
+            return new VectorRange(Math.min(min, other.min), Math.max(max, other.max), null, null);
+        }
+        float[] mergedMin = new float[dimensionMin.length];
+        float[] mergedMax = new float[dimensionMax.length];
+        for (int d = 0; d < mergedMin.length; d++) {
+            mergedMin[d] = Math.min(dimensionMin[d], other.dimensionMin[d]);
+            mergedMax[d] = Math.max(dimensionMax[d], other.dimensionMax[d]);
+        }
+        return new VectorRange(Math.min(min, other.min), Math.max(max, other.max), mergedMin, mergedMax);
+    }
+
+    private static class ScanTask extends RecursiveTask<VectorRange> {
+        private static final long serialVersionUID = 1L;
+
+        private final MappedVectorFile file;
+        private final int from;
+        private final int to;
+        private final boolean perDimension;
+
+        ScanTask(MappedVectorFile file, int from, int to, boolean perDimension) {
+            this.file = file;
+            this.from = from;
+            this.to = to;
+            this.perDimension = perDimension;
+        }
+
+        @Override
+        protected VectorRange compute() {
+            if (to - from > RECORDS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                ScanTask left = new ScanTask(file, from, mid, perDimension);
+                left.fork();
+                VectorRange right = new ScanTask(file, mid, to, perDimension).compute();
+                return left.join().merge(right);
+            }
+            Accumulator acc = new Accumulator(file.dimension(), perDimension);
+            for (int ord = from; ord < to; ord++) {
+                acc.add(file.buffer(ord), file.position(ord));
+            }
+            return acc.toRange();
+        }
+    }
+
+    /** Running min/max over a single thread's share of the vectors. */
+    private static class Accumulator {
+        private final int dimension;
+        private final int bound;
+        private final float[] dimensionMin;
+        private final float[] dimensionMax;
+        private FloatVector laneMin = FloatVector.broadcast(SPECIES, Float.POSITIVE_INFINITY);
+        private FloatVector laneMax = FloatVector.broadcast(SPECIES, Float.NEGATIVE_INFINITY);
+        private float tailMin = Float.POSITIVE_INFINITY;
+        private float tailMax = Float.NEGATIVE_INFINITY;
+
+        Accumulator(int dimension, boolean perDimension) {
+            this.dimension = dimension;
+            this.bound = SPECIES.loopBound(dimension);
+            if (perDimension) {
+                dimensionMin = new float[dimension];
+                dimensionMax = new float[dimension];
+                Arrays.fill(dimensionMin, Float.POSITIVE_INFINITY);
+                Arrays.fill(dimensionMax, Float.NEGATIVE_INFINITY);
+            } else {
+                dimensionMin = null;
+                dimensionMax = null;
+            }
+        }
+
+        void add(ByteBuffer buffer, int position) {
+            int d = 0;
+            for (; d < bound; d += SPECIES.length()) {
+                FloatVector v = FloatVector.fromByteBuffer(SPECIES, buffer, position + d * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+                accept(v, d);
+            }
+            for (; d < dimension; d++) {
+                accept(buffer.getFloat(position + d * Float.BYTES), d);
+            }
+        }
+
+        void add(float[] vector) {
+            int d = 0;
+            for (; d < bound; d += SPECIES.length()) {
+                accept(FloatVector.fromArray(SPECIES, vector, d), d);
+            }
+            for (; d < dimension; d++) {
+                accept(vector[d], d);
+            }
+        }
+
+        private void accept(FloatVector v, int d) {
+            if (dimensionMin != null) {
+                // The global range falls out of the per-dimension one, so there is no need to track both
+                FloatVector.fromArray(SPECIES, dimensionMin, d).min(v).intoArray(dimensionMin, d);
+                FloatVector.fromArray(SPECIES, dimensionMax, d).max(v).intoArray(dimensionMax, d);
+            } else {
+                laneMin = laneMin.min(v);
+                laneMax = laneMax.max(v);
+            }
+        }
+
+        private void accept(float value, int d) {
+            if (dimensionMin != null) {
+                dimensionMin[d] = Math.min(dimensionMin[d], value);
+                dimensionMax[d] = Math.max(dimensionMax[d], value);
+            } else {
+                tailMin = Math.min(tailMin, value);
+                tailMax = Math.max(tailMax, value);
+            }
+        }
+
+        VectorRange toRange() {
+            if (dimensionMin != null) {
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                for (int d = 0; d < dimension; d++) {
+                    min = Math.min(min, dimensionMin[d]);
+                    max = Math.max(max, dimensionMax[d]);
+                }
+                return new VectorRange(min, max, dimensionMin, dimensionMax);
+            }
+            float min = Math.min(tailMin, laneMin.reduceLanes(VectorOperators.MIN));
+            float max = Math.max(tailMax, laneMax.reduceLanes(VectorOperators.MAX));
+            return new VectorRange(min, max, null, null);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.tlind;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JsonEmbeddingReaderTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsTitlesBeforeEmbeddings() throws IOException {
+        List<EmbeddingRecord> records = readAll("{\"_id\":[\"a\",\"b\"],\"title\":[\"x\",\"y\"],\"text\":[\"t\",\"u\"],"
+                + "\"emb\":[[1,2],[3,4]]}");
+
+        assertRecords(records);
+    }
+
+    @Test
+    void readsEmbeddingsBeforeTitles() throws IOException {
+        List<EmbeddingRecord> records = readAll("{\"emb\":[[1,2],[3,4]],\"url\":[\"u\",\"v\"],\"title\":[\"x\",\"y\"]}");
+
+        assertRecords(records);
+    }
+
+    @Test
+    void rejectsEmbeddingsWithoutTitles() throws IOException {
+        Path file = write("{\"emb\":[[1,2],[3,4]]}");
+        try (JsonEmbeddingReader reader = new JsonEmbeddingReader(file.toString())) {
+            assertThrows(IOException.class, reader::next);
+        }
+    }
+
+    @Test
+    void rejectsEmbeddingOfOtherDimension() throws IOException {
+        Path file = write("{\"title\":[\"x\",\"y\"],\"emb\":[[1,2],[3]]}");
+        try (JsonEmbeddingReader reader = new JsonEmbeddingReader(file.toString())) {
+            reader.next();
+            assertThrows(IOException.class, reader::next);
+        }
+    }
+
+    private static void assertRecords(List<EmbeddingRecord> records) {
+        assertEquals(2, records.size());
+        assertEquals("x", records.get(0).getTitle());
+        assertArrayEquals(new float[]{1, 2}, records.get(0).getEmb());
+        assertEquals("y", records.get(1).getTitle());
+        assertArrayEquals(new float[]{3, 4}, records.get(1).getEmb());
+    }
+
+    private List<EmbeddingRecord> readAll(String json) throws IOException {
+        List<EmbeddingRecord> records = new ArrayList<>();
+        try (JsonEmbeddingReader reader = new JsonEmbeddingReader(write(json).toString())) {
+            EmbeddingRecord record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private Path write(String json) throws IOException {
+        Path file = dir.resolve("data.json");
+        Files.writeString(file, json);
+        return file;
+    }
+}
@@ -0,0 +1,118 @@
+package org.tlind;
+
+import jdk.incubator.vector.FloatVector;
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** {@link KNN} against a plain sort of every scalar distance. */
+class KNNTest {
+    private static final int LANES = FloatVector.SPECIES_PREFERRED.length();
+
+    @Test
+    void vectorizedDistanceMatchesScalar() {
+        Random random = new Random(42);
+        for (int dimension : new int[]{1, 3, LANES - 1, LANES, LANES + 1, 2 * LANES + 3, 100, 768, 1027}) {
+            if (dimension <= 0) {
+                continue;
+            }
+            float[] query = randomVector(random, dimension);
+            float[] values = new float[3 * dimension];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (float) random.nextGaussian();
+            }
+            for (int offset = 0; offset <= 2 * dimension; offset += dimension) {
+                float scalar = KNN.squareDistanceScalar(query, values, offset);
+                float vectorized = KNN.squareDistanceVectorized(query, values, offset);
+                // Lane-wise accumulation sums in a different order, so allow rounding differences
+                assertEquals(scalar, vectorized, 1e-4f * Math.max(1f, scalar), "dimension " + dimension);
+            }
+        }
+    }
+
+    @Test
+    void matchesBruteForce() {
+        Random random = new Random(42);
+        for (int dimension : new int[]{1, 3, 8, 17, 100, 1027}) {
+            float[][] vectors = randomVectors(random, 2000, dimension);
+            KNN knn = store(vectors);
+            for (int q = 0; q < 10; q++) {
+                float[] query = randomVector(random, dimension);
+                int k = 1 + random.nextInt(50);
+                for (int partitions : new int[]{1, 3, 8}) {
+                    assertNeighbours(vectors, query, k, knn.computeKNN(query, k, partitions));
+                }
+                assertNeighbours(vectors, query, k, knn.computeKNN(query, k));
+            }
+        }
+    }
+
+    @Test
+    void returnsWholeStoreWhenKExceedsSize() {
+        Random random = new Random(7);
+        float[][] vectors = randomVectors(random, 5, 16);
+        KNN knn = store(vectors);
+        float[] query = randomVector(random, 16);
+        for (int partitions : new int[]{1, 2, 5}) {
+            int[] actual = knn.computeKNN(query, 20, partitions);
+            assertEquals(vectors.length, actual.length);
+            assertNeighbours(vectors, query, vectors.length, actual);
+        }
+    }
+
+    @Test
+    void handlesMorePartitionsThanRecords() {
+        Random random = new Random(11);
+        float[][] vectors = randomVectors(random, 5, 16);
+        KNN knn = store(vectors);
+        float[] query = randomVector(random, 16);
+        assertNeighbours(vectors, query, 3, knn.computeKNN(query, 3, 16));
+        assertArrayEquals(knn.computeKNN(query, 20, 1), knn.computeKNN(query, 20, 16));
+    }
+
+    /** The hits must be the k nearest by scalar distance, nearest first; neighbours at equal distance may swap. */
+    private static void assertNeighbours(float[][] vectors, float[] query, int k, int[] actual) {
+        float[] distances = new float[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            distances[i] = KNN.squareDistanceScalar(query, vectors[i], 0);
+        }
+        int[] expected = IntStream.range(0, vectors.length).boxed()
+                .sorted(Comparator.comparingDouble(i -> distances[i]))
+                .limit(k).mapToInt(Integer::intValue).toArray();
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            float want = distances[expected[i]];
+            assertEquals(want, distances[actual[i]], 1e-4f * Math.max(1f, want), "rank " + i);
+        }
+        assertEquals(actual.length, IntStream.of(actual).distinct().count(), "duplicate hits");
+    }
+
+    private static KNN store(float[][] vectors) {
+        KNN knn = new KNN();
+        for (int i = 0; i < vectors.length; i++) {
+            knn.add(Integer.toString(i), vectors[i]);
+        }
+        return knn;
+    }
+
+    private static float[][] randomVectors(Random random, int count, int dimension) {
+        float[][] vectors = new float[count][];
+        for (int i = 0; i < count; i++) {
+            vectors[i] = randomVector(random, dimension);
+        }
+        return vectors;
+    }
+
+    private static float[] randomVector(Random random, int dimension) {
+        float[] vector = new float[dimension];
+        for (int d = 0; d < dimension; d++) {
+            vector[d] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,58 @@
+package org.tlind;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+    @Test
+    void quantilesAreWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 100_000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        assertEquals(100_000, histogram.count());
+        assertEquals(100_000_000, histogram.maxNanos());
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            double expected = quantile * 100_000_000;
+            long actual = histogram.valueAtQuantile(quantile);
+            assertTrue(actual >= expected && actual <= expected * (1 + 1.0 / 64), quantile + ": " + actual);
+        }
+        assertEquals(100_000_000, histogram.valueAtQuantile(1.0));
+    }
+
+    @Test
+    void sharedHistogramMatchesPlainOne() {
+        Random random = new Random(42);
+        LatencyHistogram plain = new LatencyHistogram();
+        LatencyHistogram perThread = new LatencyHistogram();
+        SharedLatencyHistogram shared = new SharedLatencyHistogram();
+        for (int i = 0; i < 10_000; i++) {
+            long nanos = (long) Math.exp(random.nextDouble() * 25) - 1;
+            plain.record(nanos);
+            if (i % 2 == 0) {
+                shared.record(nanos);
+            } else {
+                perThread.record(nanos);
+            }
+        }
+        shared.merge(perThread);
+
+        LatencyHistogram snapshot = shared.snapshot();
+        assertEquals(plain.summary(), snapshot.summary());
+        assertEquals(plain.totalNanos(), snapshot.totalNanos());
+    }
+
+    @Test
+    void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        SharedLatencyHistogram shared = new SharedLatencyHistogram();
+        shared.record(-5);
+        assertEquals(0, histogram.maxNanos());
+        assertEquals(histogram.summary(), shared.snapshot().summary());
+    }
+}
@@ -0,0 +1,130 @@
+package org.tlind;
+
+import jdk.incubator.vector.FloatVector;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** The Vector API and scalar paths of {@link ScalarQuantizer} must produce the same bytes and clamp counts. */
+class ScalarQuantizerTest {
+    private static final int LANES = FloatVector.SPECIES_PREFERRED.length();
+
+    /** Dimensions below, at and around multiples of the vector species, so every tail length is covered. */
+    private static int[] dimensions() {
+        return IntStream.concat(IntStream.of(1, 3, 7, 17, 100, 768, 1027),
+                IntStream.rangeClosed(LANES - 1, 3 * LANES + 1)).filter(d -> d > 0).distinct().toArray();
+    }
+
+    @Test
+    void vectorizedMatchesScalar() {
+        Random random = new Random(42);
+        for (int dimension : dimensions()) {
+            for (boolean perDimension : new boolean[]{false, true}) {
+                float[][] sample = new float[200][];
+                for (int i = 0; i < sample.length; i++) {
+                    sample[i] = randomVector(random, dimension);
+                }
+                ScalarQuantizer quantizer = ScalarQuantizer.train(sample, sample.length, perDimension, 99.0);
+                for (int i = 0; i < 200; i++) {
+                    float[] vector = randomVector(random, dimension);
+                    if (i % 5 == 0) {
+                        // Land exactly on the interval ends and on the rounding boundaries
+                        for (int d = 0; d < dimension; d++) {
+                            float lower = quantizer.getLower()[d];
+                            float upper = quantizer.getUpper()[d];
+                            float step = (upper - lower) / 255f;
+                            vector[d] = d % 3 == 0 ? lower : d % 3 == 1 ? upper : lower + step * (random.nextInt(255) + 0.5f);
+                        }
+                    }
+                    assertSamePaths(quantizer, vector, "dimension " + dimension + ", perDimension " + perDimension);
+                }
+            }
+        }
+    }
+
+    @Test
+    void clampsBelowAndAboveTheInterval() {
+        for (int dimension : dimensions()) {
+            ScalarQuantizer quantizer = ScalarQuantizer.global(-1, 1, dimension);
+            float[] below = new float[dimension];
+            float[] above = new float[dimension];
+            Arrays.fill(below, -5);
+            Arrays.fill(above, 5);
+
+            byte[] expected = new byte[dimension];
+            Arrays.fill(expected, (byte) -128);
+            assertClamped(quantizer, below, expected, dimension);
+            Arrays.fill(expected, (byte) 127);
+            assertClamped(quantizer, above, expected, dimension);
+
+            // The interval ends themselves map to the extreme codes without counting as clamped
+            Arrays.fill(below, -1);
+            Arrays.fill(above, 1);
+            Arrays.fill(expected, (byte) -128);
+            assertClamped(quantizer, below, expected, 0);
+            Arrays.fill(expected, (byte) 127);
+            assertClamped(quantizer, above, expected, 0);
+
+            // Alternating ends, so lanes of one vector are clamped in both directions
+            float[] mixed = new float[dimension];
+            for (int d = 0; d < dimension; d++) {
+                mixed[d] = d % 2 == 0 ? -3 : 3;
+                expected[d] = d % 2 == 0 ? (byte) -128 : (byte) 127;
+            }
+            assertClamped(quantizer, mixed, expected, dimension);
+        }
+    }
+
+    @Test
+    void rejectsResultOfOtherDimension() {
+        ScalarQuantizer quantizer = ScalarQuantizer.global(-1, 1, 8);
+        ByteBuffer buffer = ByteBuffer.allocate(8 * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        assertThrows(IllegalArgumentException.class, () -> quantizer.quantize(buffer, 0, new byte[7]));
+        assertThrows(IllegalArgumentException.class, () -> quantizer.quantize(new float[7], new byte[8]));
+    }
+
+    private static void assertClamped(ScalarQuantizer quantizer, float[] vector, byte[] expected, int clamped) {
+        byte[] scalar = new byte[vector.length];
+        byte[] vectorized = new byte[vector.length];
+        assertEquals(clamped, quantizer.quantizeScalar(vector, scalar), "scalar clamp count");
+        assertEquals(clamped, quantizer.quantizeVectorized(vector, vectorized), "vectorized clamp count");
+        assertArrayEquals(expected, scalar, "scalar bytes");
+        assertArrayEquals(expected, vectorized, "vectorized bytes");
+        assertSamePaths(quantizer, vector, "dimension " + vector.length);
+    }
+
+    /** Compares both paths on the array and on a little-endian buffer at an fvec-like offset. */
+    private static void assertSamePaths(ScalarQuantizer quantizer, float[] vector, String message) {
+        byte[] scalar = new byte[vector.length];
+        byte[] vectorized = new byte[vector.length];
+        assertEquals(quantizer.quantizeScalar(vector, scalar), quantizer.quantizeVectorized(vector, vectorized), message);
+        assertArrayEquals(scalar, vectorized, message);
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(vector.length);
+        for (float value : vector) {
+            buffer.putFloat(value);
+        }
+        byte[] fromBuffer = new byte[vector.length];
+        assertEquals(quantizer.quantizeScalar(buffer, Integer.BYTES, scalar),
+                quantizer.quantizeVectorized(buffer, Integer.BYTES, fromBuffer), message);
+        assertArrayEquals(scalar, fromBuffer, message);
+        assertArrayEquals(vectorized, fromBuffer, message);
+    }
+
+    private static float[] randomVector(Random random, int dimension) {
+        float[] vector = new float[dimension];
+        for (int d = 0; d < dimension; d++) {
+            vector[d] = (float) (random.nextGaussian() * 0.05);
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,59 @@
+package org.tlind;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TsvEmbeddingReaderTest {
+    @Test
+    void readsTitleAndEmbedding() throws IOException {
+        try (TsvEmbeddingReader reader = reader("a\t0.5,-1.25,3e-2\r\n\nb\t1,2,3")) {
+            EmbeddingRecord first = reader.next();
+            assertEquals("a", first.getTitle());
+            assertArrayEquals(new float[]{0.5f, -1.25f, (float) 3e-2}, first.getEmb());
+            EmbeddingRecord second = reader.next();
+            assertEquals("b", second.getTitle());
+            assertArrayEquals(new float[]{1, 2, 3}, second.getEmb());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void rejectsShorterLine() throws IOException {
+        try (TsvEmbeddingReader reader = reader("a\t1,2,3\nb\t1,2\n")) {
+            reader.next();
+            IOException e = assertThrows(IOException.class, reader::next);
+            assertTrue(e.getMessage().contains("line 2"), e.getMessage());
+        }
+    }
+
+    @Test
+    void rejectsLongerLine() throws IOException {
+        try (TsvEmbeddingReader reader = reader("a\t1,2\nb\t1,2,3\n")) {
+            reader.next();
+            assertThrows(IOException.class, reader::next);
+        }
+    }
+
+    @Test
+    void rejectsMissingColumnAndBadNumber() throws IOException {
+        try (TsvEmbeddingReader reader = reader("a\n")) {
+            assertThrows(IOException.class, reader::next);
+        }
+        try (TsvEmbeddingReader reader = reader("a\t1,x\n")) {
+            assertThrows(IOException.class, reader::next);
+        }
+    }
+
+    private static TsvEmbeddingReader reader(String tsv) {
+        return new TsvEmbeddingReader(new ByteArrayInputStream(tsv.getBytes(StandardCharsets.UTF_8)), 0, 1);
+    }
+}